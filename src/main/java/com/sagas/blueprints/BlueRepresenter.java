@@ -14,6 +14,7 @@ import com.sagas.generic.ComponentProvider;
 import com.sagas.generic.EntityRoutines;
 import com.sagas.hybrid.MetaBroker;
 import com.sagas.meta.FormManager;
+import com.sagas.meta.GridPager;
 import com.sagas.meta.model.BlueMessage;
 import com.sagas.meta.model.BlueOffer;
 import com.sagas.meta.model.MetaPayload;
@@ -34,6 +35,8 @@ public class BlueRepresenter extends BlueActorBase {
     EntityRoutines entityRoutines;
     @Inject
     FormManager formManager;
+    @Inject
+    GridPager gridPager;
 
     public BlueRepresenter(List<Class<? extends BlueComponent>> components) {
         super(components);
@@ -73,6 +76,11 @@ public class BlueRepresenter extends BlueActorBase {
                         new ActionRequest(type, packet.getRequest().getBody())
                 ));
                 break;
+            case "grid-page":
+                proc(packet, msg -> gridPager.renderGridPage(
+                        new ActionRequest(type, packet.getRequest().getBody())
+                ));
+                break;
         }
         //*/
     }
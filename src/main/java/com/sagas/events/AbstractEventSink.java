@@ -0,0 +1,33 @@
+package com.sagas.events;
+
+import java.util.Map;
+
+/**
+ * Base of the built-in sinks, keeps the stats and makes the lifecycle
+ * callbacks optional.
+ */
+public abstract class AbstractEventSink implements EventSink {
+    protected final SinkStats stats = new SinkStats();
+
+    @Override
+    public void open(Subscription subscription) {
+    }
+
+    @Override
+    public void close(Subscription subscription) {
+    }
+
+    /** Events handed to the sink but not yet consumed or acknowledged */
+    protected long getLag() {
+        return 0;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return stats.snapshot(getLag());
+    }
+
+    @Override
+    public void stop() {
+    }
+}
@@ -0,0 +1,214 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sagas.generic.BinaryValueCodec;
+import com.sagas.generic.ValueHelper;
+import com.sagas.meta.model.TaJsonEntity;
+import org.apache.ofbiz.base.conversion.ConversionException;
+import org.apache.ofbiz.entity.GenericEntity;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.model.ModelEntity;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable envelope of an entity operation, built once per (entity, operation, event)
+ * and shared by every sink the event is fanned out to.
+ *
+ * The entity value is snapshotted on the delegator thread, the encodings are
+ * materialized lazily on first use and then reused, so an event delivered to
+ * several sinks is converted to JSON at most once.
+ */
+public class EntityEvent {
+    private final String entityName;
+    // entity name and primary key values, used for partitioning and coalescing
+    private final String key;
+    private final String operation;
+    private final String event;
+    private final boolean error;
+    private final long timestamp;
+    private final Map<String, Object> fields;
+    // previous values of the changed fields, only for subscriptions asking for diffs
+    private final Map<String, Object> before;
+
+    private volatile String json;
+    private volatile TaJsonEntity proto;
+    private volatile byte[] binary;
+
+    public EntityEvent(String operation, String event, GenericEntity value, boolean error) {
+        this(value.getEntityName(), keyOf(value), operation, event, error, Maps.newHashMap(value));
+    }
+
+    /** Event of an already copied value, the fields map is owned by the event */
+    EntityEvent(String entityName, String key, String operation, String event, boolean error,
+                Map<String, Object> fields) {
+        this.entityName = entityName;
+        this.key = key;
+        this.operation = operation;
+        this.event = event;
+        this.error = error;
+        this.timestamp = System.currentTimeMillis();
+        this.fields = Collections.unmodifiableMap(fields);
+        this.before = null;
+    }
+
+    /**
+     * Event shaped for one subscription: only the projected fields (plus the primary
+     * key) are copied, and the before values are attached when given.
+     */
+    public EntityEvent(String operation, String event, GenericEntity value, boolean error,
+                       Collection<String> projection, Map<String, Object> before) {
+        this.entityName = value.getEntityName();
+        this.key = keyOf(value);
+        this.operation = operation;
+        this.event = event;
+        this.error = error;
+        this.timestamp = System.currentTimeMillis();
+        if (projection == null || projection.isEmpty()) {
+            this.fields = Collections.unmodifiableMap(Maps.newHashMap(value));
+        } else {
+            ModelEntity model = value.getModelEntity();
+            Map<String, Object> projected = Maps.newHashMapWithExpectedSize(projection.size() + model.getPksSize());
+            for (String pk : model.getPkFieldNames()) {
+                projected.put(pk, value.get(pk));
+            }
+            for (String name : projection) {
+                if (model.isField(name)) {
+                    projected.put(name, value.get(name));
+                }
+            }
+            this.fields = Collections.unmodifiableMap(projected);
+        }
+        this.before = before == null ? null : Collections.unmodifiableMap(before);
+    }
+
+    /** Key of the value, the entity name and its primary key values: "Entity|pk1::pk2" */
+    public static String keyOf(GenericEntity value) {
+        return value.getEntityName() + '|' + value.getPkShortValueString();
+    }
+
+    /** Entity name part of a key, a bare entity name is returned as is */
+    public static String entityOf(String key) {
+        int sep = key.indexOf('|');
+        return sep < 0 ? key : key.substring(0, sep);
+    }
+
+    /**
+     * Database values of a value about to be stored, taken before the delegator
+     * synchronizes it with the datasource. Null when the value is not a GenericValue.
+     */
+    public static Map<String, Object> beforeImage(GenericEntity value) {
+        if (!(value instanceof GenericValue)) {
+            return null;
+        }
+        GenericValue gv = (GenericValue) value;
+        Map<String, Object> image = Maps.newHashMap();
+        for (String name : value.getModelEntity().getAllFieldNames()) {
+            image.put(name, gv.getOriginalDbValue(name));
+        }
+        return image;
+    }
+
+    /**
+     * Values of the before image for the fields that differ from the current value,
+     * null when there is no before image. A value that was never read from the
+     * database reports all its set fields.
+     */
+    public static Map<String, Object> changes(Map<String, Object> before, GenericEntity value, Collection<String> names) {
+        if (before == null) {
+            return null;
+        }
+        ModelEntity model = value.getModelEntity();
+        Collection<String> candidates = names == null || names.isEmpty() ? model.getAllFieldNames() : names;
+        Map<String, Object> changed = Maps.newHashMap();
+        for (String name : candidates) {
+            if (model.isField(name) && !Objects.equals(before.get(name), value.get(name))) {
+                changed.put(name, before.get(name));
+            }
+        }
+        return changed;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Object> getFields() {
+        return fields;
+    }
+
+    public Map<String, Object> getBefore() {
+        return before;
+    }
+
+    private Map<String, Object> toMessageMap() {
+        Map<String, Object> map = Maps.newHashMapWithExpectedSize(fields.size() + 7);
+        map.putAll(fields);
+        map.put("_operation", operation);
+        map.put("_event", event);
+        map.put("_entity", entityName);
+        map.put("_timestamp", timestamp);
+        map.put("_error", error);
+        if (before != null) {
+            map.put("_before", before);
+            map.put("_changed", Lists.newArrayList(before.keySet()));
+        }
+        return map;
+    }
+
+    public String toJson() throws ConversionException, ClassNotFoundException {
+        String result = json;
+        if (result == null) {
+            // a racing thread may convert twice, both results are equal
+            result = ValueHelper.mapToJson(toMessageMap());
+            json = result;
+        }
+        return result;
+    }
+
+    public TaJsonEntity toProto() throws ConversionException, ClassNotFoundException {
+        TaJsonEntity result = proto;
+        if (result == null) {
+            result = TaJsonEntity.newBuilder()
+                    .setEntityName(entityName)
+                    .setJson(toJson())
+                    .build();
+            proto = result;
+        }
+        return result;
+    }
+
+    public byte[] toBinary() throws IOException {
+        byte[] result = binary;
+        if (result == null) {
+            result = BinaryValueCodec.encode(toMessageMap());
+            binary = result;
+        }
+        return result;
+    }
+}
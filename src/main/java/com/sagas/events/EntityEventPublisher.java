@@ -0,0 +1,269 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.AMQP;
+import com.sagas.actors.bus.RabbitEventProvider;
+import com.sagas.generic.KafkaProvider;
+import com.sagas.hybrid.BrokerConnectionManager;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes entity change events to the measure topics off the delegator thread.
+ *
+ * Events are put into bounded ring buffers and drained in batches by dedicated
+ * publisher threads, one ring per thread. Events are sharded over the rings by
+ * {@link EntityEvent#getKey()}, so the events of one row keep their order while
+ * different rows are published in parallel; a single hot row can't use more than
+ * one thread. A batch is closed when it reaches {@code batchSize} or when
+ * {@code lingerMs} has passed since its first event. When the buffer is full the
+ * overflow policy decides whether the caller blocks, the event is dropped or
+ * spilled to disk for later replay (spilled events lose their order).
+ */
+@Singleton
+public class EntityEventPublisher {
+    public static final String module = EntityEventPublisher.class.getName();
+    private static final String resource = "sagas";
+    public static final String MEASURE_TOPIC = "measure.entities";
+    private static final AMQP.BasicProperties JSON_PROPERTIES = new AMQP.BasicProperties.Builder()
+            .contentType("application/json").deliveryMode(2).build();
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SPILL
+    }
+
+    private final Provider<KafkaProvider> kafkaProvider;
+    private final Provider<RabbitEventProvider> rabbitProvider;
+    private final Provider<BrokerConnectionManager> connections;
+    private final String rabbitExchange = UtilProperties.getPropertyValue(resource, "event.outbox.rabbitExchange", "amq.topic");
+
+    private final boolean async;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<EntityEvent>[] rings;
+    private final EventSpillFile spillFile;
+    private final List<Thread> workers = Lists.newArrayList();
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+    private volatile boolean running = true;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+
+    @Inject
+    EntityEventPublisher(Provider<KafkaProvider> kafkaProvider, Provider<RabbitEventProvider> rabbitProvider,
+                         Provider<BrokerConnectionManager> connections) {
+        this.kafkaProvider = kafkaProvider;
+        this.rabbitProvider = rabbitProvider;
+        this.connections = connections;
+
+        this.async = UtilProperties.getPropertyAsBoolean(resource, "event.publisher.async", true);
+        int capacity = UtilProperties.getPropertyAsInteger(resource, "event.publisher.capacity", 65536);
+        int threads = UtilProperties.getPropertyAsInteger(resource, "event.publisher.threads", 2);
+        this.batchSize = UtilProperties.getPropertyAsInteger(resource, "event.publisher.batchSize", 512);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(
+                UtilProperties.getPropertyAsLong(resource, "event.publisher.lingerMs", 5));
+        this.overflowPolicy = OverflowPolicy.valueOf(UtilProperties.getPropertyValue(resource,
+                "event.publisher.overflow", "block").toUpperCase());
+        this.spillFile = new EventSpillFile(UtilProperties.getPropertyValue(resource,
+                "event.publisher.spillFile", "runtime/sagas/entity-events.spill"));
+
+        this.rings = newRings(async ? Math.max(1, threads) : 1, capacity);
+        if (async) {
+            for (int i = 0; i < rings.length; i++) {
+                BlockingQueue<EntityEvent> ring = rings[i];
+                Thread worker = new Thread(() -> drainLoop(ring), "sagas-event-publisher-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BlockingQueue<EntityEvent>[] newRings(int count, int capacity) {
+        BlockingQueue<EntityEvent>[] rings = new BlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            rings[i] = new ArrayBlockingQueue<>(Math.max(1, capacity / count));
+        }
+        return rings;
+    }
+
+    public void publish(EntityEvent event) {
+        if (!async || !running) {
+            send(event);
+            return;
+        }
+        BlockingQueue<EntityEvent> ring = rings[(event.getKey().hashCode() & Integer.MAX_VALUE) % rings.length];
+        if (ring.offer(event)) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    ring.put(event);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+                break;
+            case DROP:
+                dropped.increment();
+                break;
+            case SPILL:
+                try {
+                    spillFile.append(event.getKey(), event.toJson());
+                    spilled.increment();
+                } catch (Exception e) {
+                    Debug.logError(e, "Cannot spill entity event of " + event.getEntityName(), module);
+                    dropped.increment();
+                }
+                break;
+        }
+    }
+
+    private void drainLoop(BlockingQueue<EntityEvent> ring) {
+        List<EntityEvent> batch = Lists.newArrayListWithCapacity(batchSize);
+        while (running || !ring.isEmpty()) {
+            try {
+                EntityEvent first = ring.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    replaySpilled();
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    if (ring.drainTo(batch, batchSize - batch.size()) == 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        EntityEvent next = ring.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                batch.forEach(this::send);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(EntityEvent event) {
+        try {
+            deliver(event.getKey(), event.toJson());
+        } catch (Exception e) {
+            failed.increment();
+            Debug.logError(e, e.getMessage(), module);
+        }
+    }
+
+    /**
+     * The key orders the events of one row on one kafka partition,
+     * rabbit routes by the entity name. Returns the pending kafka send.
+     */
+    Future<RecordMetadata> deliver(String key, String json) {
+        Future<RecordMetadata> sent = kafkaProvider.get().post(MEASURE_TOPIC, key, json);
+        rabbitProvider.get().post(MEASURE_TOPIC + "." + EntityEvent.entityOf(key), json);
+        published.increment();
+        return sent;
+    }
+
+    /**
+     * Delivery for the outbox relay, rabbit goes through a confirm channel of the broker
+     * connections instead of the fire-and-forget provider. The kafka send and the rabbit
+     * confirm are added to acks.
+     */
+    void deliverAcknowledged(String key, String json, List<Future<?>> acks) throws IOException {
+        acks.add(kafkaProvider.get().post(MEASURE_TOPIC, key, json));
+        acks.add(connections.get().publish(rabbitExchange, MEASURE_TOPIC + "." + EntityEvent.entityOf(key),
+                JSON_PROPERTIES, json.getBytes(StandardCharsets.UTF_8)));
+        published.increment();
+    }
+
+    /** Blocks until every record handed to kafka so far has been sent or has failed */
+    void flush() {
+        kafkaProvider.get().flush();
+    }
+
+    private void replaySpilled() {
+        if (!spillFile.hasPending() || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int total = spillFile.replay((key, json) -> {
+                try {
+                    deliver(key, json);
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    Debug.logError(e, e.getMessage(), module);
+                }
+            });
+            Debug.logInfo("Replayed " + total + " spilled entity events", module);
+        } catch (IOException e) {
+            Debug.logError(e, "Cannot replay spilled entity events", module);
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<EntityEvent> ring : rings) {
+            size += ring.size();
+        }
+        return size;
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    public void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        spillFile.close();
+    }
+}
@@ -0,0 +1,59 @@
+package com.sagas.events;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps only the latest event per primary key within a window, the subscription
+ * flushes the surviving events once per window.
+ */
+public class EventCoalescer {
+    private final long windowMillis;
+    private final Map<String, EntityEvent> pending = new ConcurrentHashMap<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+
+    public EventCoalescer(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void offer(String key, EntityEvent event) {
+        received.increment();
+        if (pending.put(key, event) != null) {
+            collapsed.increment();
+        }
+    }
+
+    public void flush(Consumer<EntityEvent> sink) {
+        for (Map.Entry<String, EntityEvent> entry : pending.entrySet()) {
+            // an event replaced meanwhile stays for the next window
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                emitted.increment();
+                sink.accept(entry.getValue());
+            }
+        }
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getCollapsedCount() {
+        return collapsed.sum();
+    }
+
+    public long getEmittedCount() {
+        return emitted.sum();
+    }
+}
@@ -0,0 +1,242 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericDelegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transactional outbox for entity change events.
+ *
+ * Events raised inside a transaction are buffered on a {@link Synchronization}, written
+ * to the local segment log before the transaction commits and marked relayable once it
+ * has committed, so a crash after the commit can't lose them and rolled back changes are
+ * never published. A relay thread drains the log to the brokers in large batches and
+ * persists its offset once kafka has acknowledged and rabbit has confirmed a whole
+ * batch, a restart resumes from the last offset (at-least-once delivery).
+ *
+ * Each transaction also creates a {@value #TX_ENTITY} row with its outbox id, which
+ * commits or rolls back with the changes. When the process dies between writing the
+ * events and completing the transaction, the row tells on restart whether the events
+ * are relayed or discarded; the relay deletes the rows of the transactions it has
+ * handed off.
+ */
+@Singleton
+public class EventOutbox {
+    public static final String module = EventOutbox.class.getName();
+    private static final String resource = "sagas";
+    public static final String TX_ENTITY = "SagasOutboxTx";
+
+    private final EntityEventPublisher publisher;
+    private final GenericDelegator delegator;
+    private final Map<Transaction, OutboxSync> pending = Maps.newConcurrentMap();
+    // transaction ids are unique across restarts, the log may still hold the ones of the last run
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong txSequence = new AtomicLong();
+    private final int batchSize;
+    private final long pollMillis;
+    private final long ackTimeoutMillis;
+    private OutboxSegmentLog log;
+    private Thread relay;
+    private volatile boolean running = true;
+
+    @Inject
+    EventOutbox(EntityEventPublisher publisher, GenericDelegator delegator) {
+        this.publisher = publisher;
+        this.delegator = delegator;
+        this.batchSize = UtilProperties.getPropertyAsInteger(resource, "event.outbox.batchSize", 5000);
+        this.pollMillis = UtilProperties.getPropertyAsLong(resource, "event.outbox.pollMs", 200);
+        this.ackTimeoutMillis = UtilProperties.getPropertyAsLong(resource, "event.outbox.ackTimeoutMs", 30000);
+        try {
+            this.log = new OutboxSegmentLog(
+                    UtilProperties.getPropertyValue(resource, "event.outbox.dir", "runtime/sagas/outbox"),
+                    UtilProperties.getPropertyAsLong(resource, "event.outbox.segmentBytes", 64L * 1024 * 1024),
+                    UtilProperties.getPropertyAsBoolean(resource, "event.outbox.fsync", true),
+                    this::isCommitted);
+            this.relay = new Thread(this::relayLoop, "sagas-event-outbox-relay");
+            relay.setDaemon(true);
+            relay.start();
+        } catch (IOException e) {
+            Debug.logFatal(e, "Cannot open the entity event outbox", module);
+        }
+    }
+
+    public void append(EntityEvent event) {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction tx = TransactionUtil.getTransactionManager().getTransaction();
+                OutboxSync sync = pending.get(tx);
+                if (sync == null) {
+                    String txId = nextTxId();
+                    // commits with the changes, EntityEventHub doesn't append events of this entity
+                    delegator.makeValue(TX_ENTITY, "txId", txId).create();
+                    sync = new OutboxSync(tx, txId);
+                    TransactionUtil.registerSynchronization(sync);
+                    pending.put(tx, sync);
+                }
+                sync.events.add(event);
+            } else {
+                log.appendCommitted(nextTxId(), Lists.newArrayList(event));
+            }
+        } catch (Exception e) {
+            Debug.logError(e, "Cannot append entity event of " + event.getEntityName() + " to the outbox", module);
+        }
+    }
+
+    private String nextTxId() {
+        return runId + '-' + txSequence.incrementAndGet();
+    }
+
+    /** Whether the transaction of an outbox id committed, asked for the ones without outcome */
+    private boolean isCommitted(String txId) {
+        try {
+            return EntityQuery.use(delegator).from(TX_ENTITY).where("txId", txId).queryOne() != null;
+        } catch (GenericEntityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void removeRelayed(List<String> txIds) {
+        for (List<String> chunk : Lists.partition(txIds, 500)) {
+            try {
+                delegator.removeByCondition(TX_ENTITY, EntityCondition.makeCondition("txId", EntityOperator.IN, chunk));
+            } catch (GenericEntityException e) {
+                // only costs the rows, the log won't ask for these ids again
+                Debug.logWarning(e, "Cannot remove " + chunk.size() + " relayed outbox transactions", module);
+            }
+        }
+    }
+
+    /** Hands the records to the publisher, the offset only moves once both brokers have them all */
+    private final List<String> relayed = Lists.newArrayList();
+    private final OutboxSegmentLog.RecordHandler relayHandler = new OutboxSegmentLog.RecordHandler() {
+        private final List<Future<?>> sends = Lists.newArrayList();
+
+        @Override
+        public void committed(String txId) {
+            relayed.add(txId);
+        }
+
+        @Override
+        public void accept(String key, String json) throws IOException {
+            publisher.deliverAcknowledged(key, json, sends);
+        }
+
+        @Override
+        public void flush() throws Exception {
+            try {
+                publisher.flush();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+                for (Future<?> sent : sends) {
+                    // throws the cause of a failed send, or a timeout when a confirm doesn't come
+                    sent.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                sends.clear();
+            }
+        }
+    };
+
+    private void relayLoop() {
+        while (running) {
+            try {
+                int total;
+                try {
+                    total = log.relay(batchSize, relayHandler);
+                    if (!relayed.isEmpty()) {
+                        removeRelayed(relayed);
+                    }
+                } finally {
+                    relayed.clear();
+                }
+                if (total < batchSize) {
+                    TimeUnit.MILLISECONDS.sleep(pollMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // the offset is not committed, the same batch is relayed again
+                Debug.logError(e, "Relay entity events from outbox failed", module);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(pollMillis * 10);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (relay != null) {
+            relay.interrupt();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private class OutboxSync implements Synchronization {
+        private final Transaction tx;
+        private final String txId;
+        private final List<EntityEvent> events = Lists.newArrayList();
+        private boolean written;
+
+        OutboxSync(Transaction tx, String txId) {
+            this.tx = tx;
+            this.txId = txId;
+        }
+
+        @Override
+        public void beforeCompletion() {
+            if (events.isEmpty()) {
+                return;
+            }
+            try {
+                log.append(txId, events);
+                written = true;
+            } catch (Exception e) {
+                // the change can't be committed without its events
+                Debug.logError(e, "Cannot write " + events.size() + " entity events to the outbox", module);
+                throw new RuntimeException("Cannot write entity events to the outbox", e);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            pending.remove(tx);
+            if (!written) {
+                return;
+            }
+            try {
+                if (status == Status.STATUS_COMMITTED) {
+                    log.commit(txId);
+                } else {
+                    log.rollback(txId);
+                }
+            } catch (Exception e) {
+                Debug.logError(e, "Cannot complete outbox transaction " + txId, module);
+            }
+        }
+    }
+}
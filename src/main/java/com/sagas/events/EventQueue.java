@@ -0,0 +1,228 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded event ring shared by several consumers, each consumer reads with its
+ * own cursor so every consumer sees every retained event.
+ *
+ * When the slowest consumer is {@code capacity} events behind, the overflow policy
+ * either overwrites the oldest events (the lagging cursors skip forward) or rejects
+ * the new event. Either way memory stays bounded while a consumer is idle.
+ *
+ * A cursor is created by the first read of its consumer and starts at the oldest
+ * retained event. Cursors that haven't read for {@code idleMillis} are dropped once
+ * they hold back the ring, so an abandoned consumer doesn't block the others.
+ */
+public class EventQueue {
+    public static final String DEFAULT_CONSUMER = "default";
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST
+    }
+
+    private final String[] ring;
+    private final OverflowPolicy overflowPolicy;
+    private final long idleMillis;
+    private final Map<String, Cursor> cursors = Maps.newHashMap();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder dropped = new LongAdder();
+    private long head;
+
+    public EventQueue(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, 0);
+    }
+
+    /** idleMillis 0 keeps idle cursors until their consumer is removed */
+    public EventQueue(int capacity, OverflowPolicy overflowPolicy, long idleMillis) {
+        this.ring = new String[capacity];
+        this.overflowPolicy = overflowPolicy;
+        this.idleMillis = idleMillis;
+    }
+
+    public boolean add(String message) {
+        lock.lock();
+        try {
+            if (head - oldestCursor() >= ring.length && expireIdleCursors()) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.increment();
+                    return false;
+                }
+                // overwrite the oldest slot, consumers still pointing at it lose that event
+                long floor = head - ring.length + 1;
+                if (cursors.isEmpty()) {
+                    dropped.increment();
+                }
+                for (Cursor cursor : cursors.values()) {
+                    if (cursor.position < floor) {
+                        dropped.add(floor - cursor.position);
+                        cursor.position = floor;
+                    }
+                }
+            }
+            ring[(int) (head % ring.length)] = message;
+            head++;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String poll() {
+        return poll(DEFAULT_CONSUMER);
+    }
+
+    public String poll(String consumer) {
+        List<String> items = drain(consumer, 1, 0);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    public boolean isEmpty() {
+        return size(DEFAULT_CONSUMER) == 0;
+    }
+
+    public int size() {
+        return size(DEFAULT_CONSUMER);
+    }
+
+    public int size(String consumer) {
+        lock.lock();
+        try {
+            Cursor cursor = cursors.get(consumer);
+            return (int) (head - (cursor != null ? cursor.position : firstRetained()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Events the slowest consumer has not read yet, 0 without consumers */
+    public int getLag() {
+        lock.lock();
+        try {
+            return cursors.isEmpty() ? 0 : (int) (head - oldestCursor());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take up to maxItems events for the consumer, waiting at most timeoutMs for
+     * the first one to arrive.
+     */
+    public List<String> drain(String consumer, int maxItems, long timeoutMs) {
+        lock.lock();
+        try {
+            long cursor = cursor(consumer);
+            if (cursor == head && timeoutMs > 0) {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while (cursor == head && nanos > 0) {
+                    nanos = notEmpty.awaitNanos(nanos);
+                    // the cursor may have been moved forward by an overwrite
+                    cursor = cursor(consumer);
+                }
+            }
+            int total = (int) Math.min(maxItems, head - cursor);
+            if (total <= 0) {
+                return Collections.emptyList();
+            }
+            List<String> items = Lists.newArrayListWithCapacity(total);
+            for (int i = 0; i < total; i++) {
+                items.add(ring[(int) ((cursor + i) % ring.length)]);
+            }
+            cursors.get(consumer).position = cursor + total;
+            return items;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forget the cursor of a consumer that won't read again */
+    public void removeConsumer(String consumer) {
+        lock.lock();
+        try {
+            cursors.remove(consumer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public int getConsumerCount() {
+        lock.lock();
+        try {
+            return cursors.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long cursor(String consumer) {
+        Cursor cursor = cursors.get(consumer);
+        if (cursor == null) {
+            // a new consumer starts at the oldest retained event
+            cursor = new Cursor(firstRetained());
+            cursors.put(consumer, cursor);
+        } else {
+            cursor.lastRead = System.currentTimeMillis();
+        }
+        return cursor.position;
+    }
+
+    private long firstRetained() {
+        return Math.max(0, head - ring.length);
+    }
+
+    /** Without consumers the ring is full once it holds capacity events */
+    private long oldestCursor() {
+        if (cursors.isEmpty()) {
+            return firstRetained();
+        }
+        long oldest = head;
+        for (Cursor cursor : cursors.values()) {
+            oldest = Math.min(oldest, cursor.position);
+        }
+        return oldest;
+    }
+
+    /**
+     * Drops the cursors that haven't read for idleMillis, returns whether the
+     * ring is still full afterwards.
+     */
+    private boolean expireIdleCursors() {
+        if (idleMillis > 0) {
+            long expired = System.currentTimeMillis() - idleMillis;
+            cursors.values().removeIf(cursor -> cursor.lastRead < expired);
+        }
+        return head - oldestCursor() >= ring.length;
+    }
+
+    private static class Cursor {
+        private long position;
+        private long lastRead = System.currentTimeMillis();
+
+        Cursor(long position) {
+            this.position = position;
+        }
+    }
+}
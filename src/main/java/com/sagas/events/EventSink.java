@@ -0,0 +1,25 @@
+package com.sagas.events;
+
+import java.util.Map;
+
+/**
+ * Destination of the events of a subscription. Sinks are registered by name with
+ * the injector (see SagasBridge.buildContext), a subscription picks its sink by
+ * that name when it is registered with the EntityEventHub.
+ */
+public interface EventSink {
+    String getName();
+
+    /** Called once when a subscription using this sink is registered */
+    void open(Subscription subscription);
+
+    void deliver(Subscription subscription, EntityEvent event) throws Exception;
+
+    /** Called once when a subscription using this sink is removed */
+    void close(Subscription subscription);
+
+    /** Delivered, failed and byte counts, throughput per second and current lag */
+    Map<String, Object> getStats();
+
+    void stop();
+}
@@ -0,0 +1,106 @@
+package com.sagas.events;
+
+import org.apache.ofbiz.base.util.Debug;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only overflow file for entity events, one "key \t json" line per event.
+ * Replay renames the file aside first, so a crash during replay leaves the
+ * events on disk to be replayed again on the next start (at-least-once).
+ */
+public class EventSpillFile {
+    public static final String module = EventSpillFile.class.getName();
+
+    private final File file;
+    private final File replayFile;
+    private BufferedWriter writer;
+    private volatile boolean pending;
+
+    public EventSpillFile(String path) {
+        this.file = new File(path);
+        this.replayFile = new File(path + ".replay");
+        this.pending = file.length() > 0 || replayFile.exists();
+    }
+
+    public boolean hasPending() {
+        return pending;
+    }
+
+    public synchronized void append(String key, String json) throws IOException {
+        if (writer == null) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create spill directory " + dir);
+            }
+            writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        writer.write(key);
+        writer.write('\t');
+        writer.write(json);
+        writer.write('\n');
+        writer.flush();
+        pending = true;
+    }
+
+    /**
+     * Hands every spilled event to the consumer, returns the count of replayed events.
+     */
+    public int replay(BiConsumer<String, String> consumer) throws IOException {
+        synchronized (this) {
+            if (!replayFile.exists()) {
+                closeWriter();
+                if (!file.exists()) {
+                    pending = false;
+                    return 0;
+                }
+                Files.move(file.toPath(), replayFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            pending = false;
+        }
+
+        int total = 0;
+        try (BufferedReader reader = Files.newBufferedReader(replayFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int sep = line.indexOf('\t');
+                if (sep <= 0) {
+                    Debug.logWarning("Skip malformed spilled event: " + line, module);
+                    continue;
+                }
+                consumer.accept(line.substring(0, sep), line.substring(sep + 1));
+                total++;
+            }
+        }
+        Files.delete(replayFile.toPath());
+        synchronized (this) {
+            // events left over from a previous run may still wait in the spill file
+            pending = pending || file.length() > 0;
+        }
+        return total;
+    }
+
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Debug.logError(e, e.getMessage(), module);
+            }
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sagas.events;
+
+import com.google.common.collect.Queues;
+import com.sagas.meta.model.TaJsonEntity;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+import javax.inject.Singleton;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams events to the gRPC clients attached to a subscription, a server-streaming
+ * call hands its response observer to {@link #attach}. Events for a client that is
+ * not ready for more messages are buffered, up to {@code bufferSize} per client, and
+ * sent once the call is ready again. A client that falls further behind is closed
+ * with RESOURCE_EXHAUSTED, so it can reconnect instead of silently missing events.
+ * The buffered events are reported as lag.
+ */
+@Singleton
+public class GrpcStreamEventSink extends AbstractEventSink {
+    public static final String module = GrpcStreamEventSink.class.getName();
+    public static final String NAME = "grpc";
+
+    private final int bufferSize = UtilProperties.getPropertyAsInteger("sagas", "event.sink.grpc.bufferSize", 1024);
+    private final Map<Subscription, List<Client>> clients = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void open(Subscription subscription) {
+        clients.put(subscription, new CopyOnWriteArrayList<>());
+    }
+
+    /** Must be called from the call handler, the ready handler can't be set later */
+    public void attach(Subscription subscription, StreamObserver<TaJsonEntity> observer) {
+        List<Client> attached = clients.get(subscription);
+        if (attached == null) {
+            throw new RuntimeException("Subscription " + subscription.getKey() + " is not a grpc subscription");
+        }
+        Client client = new Client(observer);
+        attached.add(client);
+        if (observer instanceof ServerCallStreamObserver) {
+            ServerCallStreamObserver<TaJsonEntity> call = (ServerCallStreamObserver<TaJsonEntity>) observer;
+            call.setOnCancelHandler(() -> attached.remove(client));
+            call.setOnReadyHandler(() -> {
+                if (!client.drain()) {
+                    attached.remove(client);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void deliver(Subscription subscription, EntityEvent event) throws Exception {
+        List<Client> attached = clients.get(subscription);
+        if (attached == null || attached.isEmpty()) {
+            return;
+        }
+        TaJsonEntity message = event.toProto();
+        for (Client client : attached) {
+            if (!client.send(message)) {
+                attached.remove(client);
+                Debug.logWarning("Closed grpc client of " + subscription.getKey() + ", "
+                        + client.closeReason, module);
+            }
+        }
+    }
+
+    @Override
+    public void close(Subscription subscription) {
+        List<Client> attached = clients.remove(subscription);
+        if (attached != null) {
+            for (Client client : attached) {
+                client.complete();
+            }
+        }
+    }
+
+    @Override
+    protected long getLag() {
+        long lag = 0;
+        for (List<Client> attached : clients.values()) {
+            for (Client client : attached) {
+                lag += client.getBuffered();
+            }
+        }
+        return lag;
+    }
+
+    @Override
+    public void stop() {
+        for (Subscription subscription : clients.keySet()) {
+            close(subscription);
+        }
+    }
+
+    /** One attached call, the observer is not thread-safe so every call on it holds the client lock */
+    private class Client {
+        private final StreamObserver<TaJsonEntity> observer;
+        private final Deque<TaJsonEntity> buffer = Queues.newArrayDeque();
+        private boolean closed;
+        private String closeReason;
+
+        Client(StreamObserver<TaJsonEntity> observer) {
+            this.observer = observer;
+        }
+
+        private boolean isReady() {
+            return !(observer instanceof ServerCallStreamObserver)
+                    || ((ServerCallStreamObserver<TaJsonEntity>) observer).isReady();
+        }
+
+        /** Returns false once the client is closed */
+        synchronized boolean send(TaJsonEntity message) {
+            if (closed) {
+                return false;
+            }
+            if (buffer.isEmpty() && isReady()) {
+                return next(message);
+            }
+            if (buffer.size() >= bufferSize) {
+                fail("fell " + buffer.size() + " events behind");
+                return false;
+            }
+            buffer.add(message);
+            return true;
+        }
+
+        /** Sends the buffered events while the call is ready */
+        synchronized boolean drain() {
+            while (!closed && !buffer.isEmpty() && isReady()) {
+                if (!next(buffer.poll())) {
+                    return false;
+                }
+            }
+            return !closed;
+        }
+
+        synchronized int getBuffered() {
+            return buffer.size();
+        }
+
+        synchronized void complete() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.clear();
+            try {
+                observer.onCompleted();
+            } catch (RuntimeException e) {
+                // already cancelled
+            }
+        }
+
+        private boolean next(TaJsonEntity message) {
+            try {
+                observer.onNext(message);
+                stats.delivered(message.getSerializedSize());
+                return true;
+            } catch (RuntimeException e) {
+                // the call is gone
+                closed = true;
+                closeReason = e.getMessage();
+                buffer.clear();
+                stats.failed();
+                return false;
+            }
+        }
+
+        private void fail(String reason) {
+            closed = true;
+            closeReason = reason;
+            stats.failed();
+            buffer.clear();
+            try {
+                observer.onError(Status.RESOURCE_EXHAUSTED.withDescription("Subscriber " + reason).asRuntimeException());
+            } catch (RuntimeException e) {
+                // already cancelled
+            }
+        }
+    }
+}
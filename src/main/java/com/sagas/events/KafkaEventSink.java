@@ -0,0 +1,42 @@
+package com.sagas.events;
+
+import com.sagas.generic.KafkaProvider;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Posts events keyed by row to the subscription location, or to "event.<entity name>"
+ * when no location is given. The lag is the count of records not acknowledged yet.
+ */
+@Singleton
+public class KafkaEventSink extends AbstractEventSink {
+    public static final String NAME = "kafka";
+
+    private final Provider<KafkaProvider> kafkaProvider;
+
+    @Inject
+    KafkaEventSink(Provider<KafkaProvider> kafkaProvider) {
+        this.kafkaProvider = kafkaProvider;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void deliver(Subscription subscription, EntityEvent event) throws Exception {
+        String topic = subscription.getLocation() != null ? subscription.getLocation()
+                : "event." + event.getEntityName();
+        String json = event.toJson();
+        kafkaProvider.get().post(topic, event.getKey(), json);
+        stats.delivered(json.length());
+    }
+
+    @Override
+    protected long getLag() {
+        return kafkaProvider.get().getInFlightCount();
+    }
+}
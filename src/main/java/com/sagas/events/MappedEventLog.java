@@ -0,0 +1,89 @@
+package com.sagas.events;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only log of length-prefixed records written through a memory-mapped
+ * window of {@code chunkBytes}; when the window is full the next one is mapped
+ * right after the last record. The mapped tail of the file is zero filled, so a
+ * reopened log resumes after the last record with a non-zero length. Close truncates
+ * the file under the live mapping, so a closed log refuses further appends.
+ */
+public class MappedEventLog {
+    private final FileChannel channel;
+    private final long chunkBytes;
+    private MappedByteBuffer buffer;
+    private long base;
+    private boolean closed;
+
+    public MappedEventLog(File file, long chunkBytes) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create log directory " + dir);
+        }
+        this.chunkBytes = chunkBytes;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            channel.read(length, position);
+            length.flip();
+            int n = length.getInt();
+            if (n <= 0) {
+                break;
+            }
+            position += 4 + n;
+        }
+        map(position);
+    }
+
+    private void map(long position) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkBytes);
+        base = position;
+    }
+
+    public synchronized void append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed");
+        }
+        if (record.length + 4 > chunkBytes) {
+            throw new IOException("Record of " + record.length + " bytes doesn't fit in a log chunk");
+        }
+        if (buffer.remaining() < record.length + 4) {
+            map(base + buffer.position());
+        }
+        buffer.putInt(record.length);
+        buffer.put(record);
+    }
+
+    /** File position after the last record */
+    public synchronized long getPosition() {
+        return base + buffer.position();
+    }
+
+    public synchronized void force() {
+        if (!closed) {
+            buffer.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        // drop the zero filled tail of the last window
+        channel.truncate(getPosition());
+        channel.close();
+    }
+}
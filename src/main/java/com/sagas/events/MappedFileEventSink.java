@@ -0,0 +1,73 @@
+package com.sagas.events;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends the binary encoding of each event (see BinaryValueCodec) to a memory-mapped
+ * log per subscription. The location is the log path, by default the subscription key
+ * under {@code event.sink.file.dir}.
+ */
+@Singleton
+public class MappedFileEventSink extends AbstractEventSink {
+    public static final String module = MappedFileEventSink.class.getName();
+    public static final String NAME = "file";
+    private static final String resource = "sagas";
+
+    private final String dir = UtilProperties.getPropertyValue(resource, "event.sink.file.dir", "runtime/sagas/sinks");
+    private final long chunkBytes = UtilProperties.getPropertyAsLong(resource, "event.sink.file.chunkBytes", 64L << 20);
+    private final Map<Subscription, MappedEventLog> logs = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void open(Subscription subscription) {
+        File file = subscription.getLocation() != null ? new File(subscription.getLocation())
+                : new File(dir, subscription.getKey().replace('*', '_') + ".log");
+        try {
+            logs.put(subscription, new MappedEventLog(file, chunkBytes));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open event log " + file, e);
+        }
+    }
+
+    @Override
+    public void deliver(Subscription subscription, EntityEvent event) throws Exception {
+        MappedEventLog log = logs.get(subscription);
+        if (log == null) {
+            stats.failed();
+            return;
+        }
+        byte[] record = event.toBinary();
+        log.append(record);
+        stats.delivered(record.length);
+    }
+
+    @Override
+    public void close(Subscription subscription) {
+        MappedEventLog log = logs.remove(subscription);
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Debug.logError(e, e.getMessage(), module);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (Subscription subscription : logs.keySet()) {
+            close(subscription);
+        }
+    }
+}
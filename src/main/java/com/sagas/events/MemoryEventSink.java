@@ -0,0 +1,58 @@
+package com.sagas.events;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the events of each subscription in its own bounded in-memory ring,
+ * read through EntityEventHub.drain. The lag is the count of events the
+ * slowest consumer of each queue has not read yet.
+ */
+@Singleton
+public class MemoryEventSink extends AbstractEventSink {
+    public static final String NAME = "queue";
+
+    private final Map<Subscription, EventQueue> queues = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void open(Subscription subscription) {
+        SubscriptionOptions options = subscription.getOptions();
+        queues.put(subscription, new EventQueue(options.getQueueCapacity(), options.getOverflowPolicy(),
+                options.getIdleConsumerMillis()));
+    }
+
+    @Override
+    public void deliver(Subscription subscription, EntityEvent event) throws Exception {
+        EventQueue queue = queues.get(subscription);
+        String json = event.toJson();
+        if (queue != null && queue.add(json)) {
+            stats.delivered(json.length());
+        } else {
+            stats.failed();
+        }
+    }
+
+    @Override
+    public void close(Subscription subscription) {
+        queues.remove(subscription);
+    }
+
+    public EventQueue getQueue(Subscription subscription) {
+        return queues.get(subscription);
+    }
+
+    @Override
+    protected long getLag() {
+        long lag = 0;
+        for (EventQueue queue : queues.values()) {
+            lag += queue.getLag();
+        }
+        return lag;
+    }
+}
@@ -0,0 +1,367 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.ofbiz.base.util.Debug;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Append-only, segmented record log with a persisted read offset.
+ *
+ * Events are written as "E txid \t key \t json" lines (the key is {@link EntityEvent#getKey()})
+ * before their transaction completes, and become relayable with a later "C txid" commit
+ * marker, a "R txid" rollback marker discards them. Files are named segment-NNNNNNNNNN.log,
+ * a new segment is started once the current one exceeds {@code segmentBytes}.
+ *
+ * The reader position (segment, byte offset) is kept in the "offset" file. It never moves
+ * past the first record of a transaction without outcome, so records of transactions
+ * committed after that one may be relayed again after a restart; fully read segments are
+ * deleted. Transactions of a previous run that have no outcome at all (the process died
+ * between writing and completing them) are resolved on open with the given check, which
+ * tells whether their database transaction committed.
+ */
+public class OutboxSegmentLog {
+    public static final String module = OutboxSegmentLog.class.getName();
+
+    /** Receives the committed records of a relay batch */
+    public interface RecordHandler {
+        void accept(String key, String json) throws Exception;
+
+        /** Called before the offset is committed, throws when a record was not delivered */
+        void flush() throws Exception;
+
+        /** The records of the transaction have all been handed to accept */
+        void committed(String txId);
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final boolean fsync;
+
+    private long writeSegment;
+    private FileChannel writer;
+
+    // persisted offset
+    private long readSegment;
+    private long readPosition;
+
+    // relay state, only touched by the relay thread
+    private long scanSegment;
+    private long scanPosition;
+    private final Map<String, OpenTransaction> open = Maps.newLinkedHashMap();
+
+    public OutboxSegmentLog(String path, long segmentBytes, boolean fsync, Predicate<String> committed) throws IOException {
+        this.dir = new File(path);
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + dir);
+        }
+        loadOffset();
+        this.writeSegment = Math.max(readSegment, lastSegment());
+        this.scanSegment = readSegment;
+        this.scanPosition = readPosition;
+        recover(committed);
+    }
+
+    /** Records the events of a transaction, they are not relayed before {@link #commit(String)} */
+    public void append(String txId, List<EntityEvent> events) throws IOException {
+        write(eventLines(txId, events), fsync);
+    }
+
+    public void commit(String txId) throws IOException {
+        write("C " + txId + '\n', false);
+    }
+
+    public void rollback(String txId) throws IOException {
+        // a lost rollback marker would publish a change that never happened
+        write("R " + txId + '\n', fsync);
+    }
+
+    /** Records events outside of a transaction, relayable right away */
+    public void appendCommitted(String txId, List<EntityEvent> events) throws IOException {
+        write(eventLines(txId, events).append("C ").append(txId).append('\n'), fsync);
+    }
+
+    private static StringBuilder eventLines(String txId, List<EntityEvent> events) {
+        StringBuilder lines = new StringBuilder();
+        for (EntityEvent event : events) {
+            lines.append("E ").append(txId).append('\t')
+                    .append(event.getKey()).append('\t').append(event.toJson()).append('\n');
+        }
+        return lines;
+    }
+
+    private synchronized void write(CharSequence lines, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        FileChannel channel = currentWriter();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (force) {
+            channel.force(false);
+        }
+        if (channel.size() >= segmentBytes) {
+            channel.close();
+            writer = null;
+            writeSegment++;
+        }
+    }
+
+    /**
+     * Hands up to maxRecords committed records to the handler, and commits the new offset
+     * once the handler has flushed them without an exception. On failure the reader goes
+     * back to the persisted offset, so the same records are relayed again.
+     */
+    public int relay(int maxRecords, RecordHandler handler) throws Exception {
+        long lastWritten;
+        synchronized (this) {
+            lastWritten = writeSegment;
+        }
+
+        int[] total = {0};
+        try {
+            scan(lastWritten, () -> total[0] < maxRecords, (type, txId, rest, start) -> {
+                switch (type) {
+                    case 'E':
+                        OpenTransaction tx = open.get(txId);
+                        if (tx == null) {
+                            tx = new OpenTransaction(start[0], start[1]);
+                            open.put(txId, tx);
+                        }
+                        tx.records.add(rest);
+                        break;
+                    case 'C':
+                        OpenTransaction committed = open.remove(txId);
+                        if (committed != null) {
+                            for (String record : committed.records) {
+                                int sep = record.indexOf('\t');
+                                handler.accept(record.substring(0, sep), record.substring(sep + 1));
+                                total[0]++;
+                            }
+                            handler.committed(txId);
+                        }
+                        break;
+                    case 'R':
+                        open.remove(txId);
+                        break;
+                }
+            });
+            handler.flush();
+        } catch (Exception e) {
+            scanSegment = readSegment;
+            scanPosition = readPosition;
+            open.clear();
+            throw e;
+        }
+
+        if (open.isEmpty()) {
+            commitOffset(scanSegment, scanPosition);
+        } else {
+            OpenTransaction first = open.values().iterator().next();
+            commitOffset(first.segment, first.position);
+        }
+        return total[0];
+    }
+
+    /**
+     * Closes the transactions of the last run that were written but never completed,
+     * with a commit or rollback marker depending on the outcome of their database transaction.
+     */
+    private void recover(Predicate<String> committed) throws IOException {
+        Set<String> pending = Sets.newLinkedHashSet();
+        try {
+            scan(writeSegment, () -> true, (type, txId, rest, start) -> {
+                if (type == 'E') {
+                    pending.add(txId);
+                } else {
+                    pending.remove(txId);
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            scanSegment = readSegment;
+            scanPosition = readPosition;
+        }
+        if (!pending.isEmpty()) {
+            StringBuilder markers = new StringBuilder();
+            int rolledBack = 0;
+            try {
+                for (String txId : pending) {
+                    if (committed.test(txId)) {
+                        markers.append("C ").append(txId).append('\n');
+                    } else {
+                        markers.append("R ").append(txId).append('\n');
+                        rolledBack++;
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Cannot resolve the outcome of the outbox transactions", e);
+            }
+            Debug.logWarning(pending.size() + " outbox transactions had no outcome, "
+                    + rolledBack + " of them were rolled back", module);
+            write(markers, fsync);
+        }
+    }
+
+    private interface LineVisitor {
+        void visit(char type, String txId, String rest, long[] start) throws Exception;
+    }
+
+    /** Reads complete lines from the scan position on, while more is true */
+    private void scan(long lastWritten, BooleanSupplier more, LineVisitor visitor) throws Exception {
+        while (more.getAsBoolean()) {
+            File file = segmentFile(scanSegment);
+            if (file.exists()) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    channel.position(scanPosition);
+                    InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+                    ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+                    int b;
+                    while (more.getAsBoolean() && (b = in.read()) != -1) {
+                        if (b != '\n') {
+                            line.write(b);
+                            continue;
+                        }
+                        long[] start = {scanSegment, scanPosition};
+                        scanPosition += line.size() + 1;
+                        String record = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                        line.reset();
+                        int sep = record.indexOf('\t');
+                        if (record.length() < 3 || record.charAt(1) != ' '
+                                || (record.charAt(0) == 'E' && (sep < 0 || record.indexOf('\t', sep + 1) < 0))) {
+                            Debug.logWarning("Skip malformed outbox record: " + record, module);
+                            continue;
+                        }
+                        if (record.charAt(0) == 'E') {
+                            visitor.visit('E', record.substring(2, sep), record.substring(sep + 1), start);
+                        } else {
+                            visitor.visit(record.charAt(0), record.substring(2), null, start);
+                        }
+                    }
+                }
+            }
+            if (!more.getAsBoolean() || scanSegment >= lastWritten) {
+                break;
+            }
+            // the segment is complete, continue with the next one
+            scanSegment++;
+            scanPosition = 0;
+        }
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Debug.logError(e, e.getMessage(), module);
+            }
+            writer = null;
+        }
+    }
+
+    private FileChannel currentWriter() throws IOException {
+        if (writer == null) {
+            writer = FileChannel.open(segmentFile(writeSegment).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return writer;
+    }
+
+    private synchronized void commitOffset(long segment, long position) throws IOException {
+        if (segment == readSegment && position == readPosition) {
+            return;
+        }
+        File tmp = new File(dir, "offset.tmp");
+        try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+            out.write((segment + " " + position).getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(tmp.toPath(), new File(dir, "offset").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (long s = readSegment; s < segment; s++) {
+            Files.deleteIfExists(segmentFile(s).toPath());
+        }
+        readSegment = segment;
+        readPosition = position;
+    }
+
+    private void loadOffset() throws IOException {
+        File file = new File(dir, "offset");
+        if (!file.exists()) {
+            readSegment = firstSegment();
+            readPosition = 0;
+            return;
+        }
+        String[] parts = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        readSegment = Long.parseLong(parts[0]);
+        readPosition = Long.parseLong(parts[1]);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("segment-%010d.log", segment));
+    }
+
+    private long firstSegment() {
+        long first = Long.MAX_VALUE;
+        for (long segment : listSegments()) {
+            first = Math.min(first, segment);
+        }
+        return first == Long.MAX_VALUE ? 0 : first;
+    }
+
+    private long lastSegment() {
+        long last = 0;
+        for (long segment : listSegments()) {
+            last = Math.max(last, segment);
+        }
+        return last;
+    }
+
+    private long[] listSegments() {
+        String[] names = dir.list((d, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring("segment-".length(), names[i].length() - ".log".length()));
+        }
+        return segments;
+    }
+
+    private static class OpenTransaction {
+        private final long segment;
+        private final long position;
+        private final List<String> records = Lists.newArrayList();
+
+        OpenTransaction(long segment, long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.sagas.events;
+
+import com.sagas.actors.bus.RabbitEventProvider;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Publishes events with the subscription location as routing key, or
+ * "event.<entity name>" when no location is given.
+ */
+@Singleton
+public class RabbitEventSink extends AbstractEventSink {
+    public static final String NAME = "rabbit";
+
+    private final Provider<RabbitEventProvider> rabbitProvider;
+
+    @Inject
+    RabbitEventSink(Provider<RabbitEventProvider> rabbitProvider) {
+        this.rabbitProvider = rabbitProvider;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void deliver(Subscription subscription, EntityEvent event) throws Exception {
+        String routingKey = subscription.getLocation() != null ? subscription.getLocation()
+                : "event." + event.getEntityName();
+        String json = event.toJson();
+        rabbitProvider.get().post(routingKey, json);
+        stats.delivered(json.length());
+    }
+}
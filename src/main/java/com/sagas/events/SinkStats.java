@@ -0,0 +1,47 @@
+package com.sagas.events;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one sink. The throughput is averaged since the sink was created,
+ * the lag is whatever the sink reports as not yet consumed or acknowledged.
+ */
+public class SinkStats {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public void delivered(long size) {
+        delivered.increment();
+        bytes.add(size);
+    }
+
+    public void failed() {
+        failed.increment();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public Map<String, Object> snapshot(long lag) {
+        long count = delivered.sum();
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        Map<String, Object> snapshot = Maps.newLinkedHashMap();
+        snapshot.put("delivered", count);
+        snapshot.put("failed", failed.sum());
+        snapshot.put("bytes", bytes.sum());
+        snapshot.put("perSecond", count * 1000.0 / elapsedMillis);
+        snapshot.put("lag", lag);
+        return snapshot;
+    }
+}
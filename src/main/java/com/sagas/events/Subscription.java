@@ -0,0 +1,149 @@
+package com.sagas.events;
+
+import org.apache.ofbiz.entity.GenericEntity;
+import org.apache.ofbiz.entity.eca.EntityEcaHandler;
+import org.apache.ofbiz.entity.model.ModelEntity;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.regex.Pattern;
+
+/**
+ * A subscriber registration, the entity may be a glob pattern such as "Order*",
+ * operation and event may be "*" to match any.
+ */
+public class Subscription {
+    public static final String ANY = "*";
+
+    private final String entity;
+    private final String operation;
+    private final String event;
+    private final EventSink sink;
+    private final String location;
+    private final Pattern entityPattern;
+    private final SubscriptionOptions options;
+    private final EventCoalescer coalescer;
+    private ScheduledFuture<?> flushTask;
+
+    public Subscription(String entity, String operation, String event, EventSink sink, String location) {
+        this(entity, operation, event, sink, location, new SubscriptionOptions());
+    }
+
+    public Subscription(String entity, String operation, String event, EventSink sink, String location,
+                        SubscriptionOptions options) {
+        this.entity = entity;
+        this.operation = operation;
+        this.event = event;
+        this.sink = sink;
+        this.location = location;
+        this.entityPattern = entity.indexOf('*') >= 0 ? globToPattern(entity) : null;
+        this.options = options;
+        this.coalescer = options.getCoalesceMillis() > 0 ? new EventCoalescer(options.getCoalesceMillis()) : null;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        String[] parts = glob.split("\\*", -1);
+        StringBuilder regex = new StringBuilder(Pattern.quote(parts[0]));
+        for (int i = 1; i < parts.length; i++) {
+            regex.append(".*").append(Pattern.quote(parts[i]));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    public String getKey() {
+        return entity + '.' + operation + '.' + event;
+    }
+
+    public boolean matchesEntity(String entityName) {
+        return entityPattern == null ? entity.equals(entityName) : entityPattern.matcher(entityName).matches();
+    }
+
+    public boolean matchesOperation(String name) {
+        return ANY.equals(operation) || operation.equals(name);
+    }
+
+    public boolean matchesEvent(String name) {
+        return ANY.equals(event) || event.equals(name);
+    }
+
+    /** Whether accepts or shape compare the value against its before image */
+    public boolean needsBeforeImage() {
+        return !options.getChangedFields().isEmpty() || options.isDiff();
+    }
+
+    /**
+     * Evaluates the where conditions and, for store operations, the changed-fields
+     * filter against the entity value, before anything is copied or serialized.
+     * The before image is the one taken at validate, see {@link EntityEvent#beforeImage}.
+     */
+    public boolean accepts(String operation, GenericEntity value, Map<String, Object> before) {
+        ModelEntity model = value.getModelEntity();
+        for (Map.Entry<String, Object> condition : options.getWhere().entrySet()) {
+            if (!model.isField(condition.getKey())) {
+                return false;
+            }
+            Object actual = value.get(condition.getKey());
+            Object expected = condition.getValue();
+            if (!Objects.equals(actual, expected)
+                    && (actual == null || expected == null || !actual.toString().equals(expected.toString()))) {
+                return false;
+            }
+        }
+
+        if (!options.getChangedFields().isEmpty() && EntityEcaHandler.OP_STORE.equals(operation)) {
+            Map<String, Object> changes = EntityEvent.changes(before, value, options.getChangedFields());
+            return changes == null || !changes.isEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * Payload of a shaped subscription, only the projected fields and, for store
+     * operations with diff enabled, the previous values of the changed fields.
+     */
+    public EntityEvent shape(String operation, String event, GenericEntity value, boolean error,
+                             Map<String, Object> before) {
+        Map<String, Object> changes = null;
+        if (options.isDiff() && EntityEcaHandler.OP_STORE.equals(operation)) {
+            changes = EntityEvent.changes(before, value, options.getFields());
+        }
+        return new EntityEvent(operation, event, value, error, options.getFields(), changes);
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public EventSink getSink() {
+        return sink;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public SubscriptionOptions getOptions() {
+        return options;
+    }
+
+    public EventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public ScheduledFuture<?> getFlushTask() {
+        return flushTask;
+    }
+
+    public void setFlushTask(ScheduledFuture<?> flushTask) {
+        this.flushTask = flushTask;
+    }
+}
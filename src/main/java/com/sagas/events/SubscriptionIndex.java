@@ -0,0 +1,153 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import org.apache.ofbiz.entity.eca.EntityEcaHandler;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pre-compiled lookup table of subscriptions: entity -> operation -> event -> subscriptions.
+ *
+ * Each entity name is resolved against all registrations (including glob patterns)
+ * the first time it is seen, entities nobody subscribes to share the EMPTY table,
+ * so the lookup for them is a single map probe without any allocation. Registering
+ * or removing a subscription discards the resolved tables.
+ */
+public class SubscriptionIndex {
+    private static final Subscription[] NONE = new Subscription[0];
+
+    static final String[] OPERATIONS = {
+            EntityEcaHandler.OP_CREATE, EntityEcaHandler.OP_STORE,
+            EntityEcaHandler.OP_REMOVE, EntityEcaHandler.OP_FIND};
+    static final String[] EVENTS = {
+            EntityEcaHandler.EV_VALIDATE, EntityEcaHandler.EV_RUN, EntityEcaHandler.EV_RETURN,
+            EntityEcaHandler.EV_CACHE_CHECK, EntityEcaHandler.EV_CACHE_PUT, EntityEcaHandler.EV_CACHE_CLEAR};
+
+    private static final EntityTable EMPTY = new EntityTable();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile Map<String, EntityTable> tables = new ConcurrentHashMap<>();
+
+    private static class EntityTable {
+        final Subscription[][] slots = new Subscription[OPERATIONS.length][EVENTS.length];
+
+        EntityTable() {
+            for (Subscription[] row : slots) {
+                Arrays.fill(row, NONE);
+            }
+        }
+    }
+
+    static int operationIndex(String operation) {
+        switch (operation) {
+            case EntityEcaHandler.OP_CREATE:
+                return 0;
+            case EntityEcaHandler.OP_STORE:
+                return 1;
+            case EntityEcaHandler.OP_REMOVE:
+                return 2;
+            case EntityEcaHandler.OP_FIND:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    static int eventIndex(String event) {
+        switch (event) {
+            case EntityEcaHandler.EV_VALIDATE:
+                return 0;
+            case EntityEcaHandler.EV_RUN:
+                return 1;
+            case EntityEcaHandler.EV_RETURN:
+                return 2;
+            case EntityEcaHandler.EV_CACHE_CHECK:
+                return 3;
+            case EntityEcaHandler.EV_CACHE_PUT:
+                return 4;
+            case EntityEcaHandler.EV_CACHE_CLEAR:
+                return 5;
+            default:
+                return -1;
+        }
+    }
+
+    public Subscription[] lookup(String entityName, String operation, String event) {
+        Map<String, EntityTable> current = tables;
+        EntityTable table = current.get(entityName);
+        if (table == null) {
+            table = resolve(current, entityName);
+        }
+        if (table == EMPTY) {
+            return NONE;
+        }
+        int op = operationIndex(operation);
+        int ev = eventIndex(event);
+        if (op < 0 || ev < 0) {
+            return NONE;
+        }
+        return table.slots[op][ev];
+    }
+
+    private EntityTable resolve(Map<String, EntityTable> current, String entityName) {
+        EntityTable table = null;
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.matchesEntity(entityName)) {
+                continue;
+            }
+            if (table == null) {
+                table = new EntityTable();
+            }
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                if (!subscription.matchesOperation(OPERATIONS[op])) {
+                    continue;
+                }
+                for (int ev = 0; ev < EVENTS.length; ev++) {
+                    if (subscription.matchesEvent(EVENTS[ev])) {
+                        Subscription[] slot = table.slots[op][ev];
+                        Subscription[] extended = Arrays.copyOf(slot, slot.length + 1);
+                        extended[slot.length] = subscription;
+                        table.slots[op][ev] = extended;
+                    }
+                }
+            }
+        }
+        if (table == null) {
+            table = EMPTY;
+        }
+        EntityTable existing = current.putIfAbsent(entityName, table);
+        return existing != null ? existing : table;
+    }
+
+    public synchronized void add(Subscription subscription) {
+        subscriptions.add(subscription);
+        // publish a new table map after the registration list has changed
+        tables = new ConcurrentHashMap<>();
+    }
+
+    public synchronized boolean remove(Subscription subscription) {
+        boolean removed = subscriptions.remove(subscription);
+        if (removed) {
+            tables = new ConcurrentHashMap<>();
+        }
+        return removed;
+    }
+
+    public Subscription find(String entity, String operation, String event, String sinkName) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.getSink().getName().equals(sinkName) && subscription.getEntity().equals(entity)
+                    && subscription.getOperation().equals(operation) && subscription.getEvent().equals(event)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    public List<Subscription> getSubscriptions() {
+        return Lists.newArrayList(subscriptions);
+    }
+}
@@ -0,0 +1,122 @@
+package com.sagas.events;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per subscription settings, the setters return this so the options can be
+ * chained from python clients as well.
+ */
+public class SubscriptionOptions {
+    private static final String resource = "sagas";
+
+    private int queueCapacity = UtilProperties.getPropertyAsInteger(resource, "event.queue.capacity", 10000);
+    private EventQueue.OverflowPolicy overflowPolicy = EventQueue.OverflowPolicy.valueOf(
+            UtilProperties.getPropertyValue(resource, "event.queue.overflow", "drop_oldest").toUpperCase());
+    // queue consumers that haven't read for this long are dropped once they hold back the queue
+    private long idleConsumerMillis = UtilProperties.getPropertyAsLong(resource, "event.queue.idleConsumerMs", 600000);
+
+    // projection, empty means all fields; primary key fields are always included
+    private final Set<String> fields = Sets.newLinkedHashSet();
+    // field = value conditions the entity must satisfy
+    private final Map<String, Object> where = Maps.newLinkedHashMap();
+    // store events are only delivered when one of these fields has changed
+    private final Set<String> changedFields = Sets.newLinkedHashSet();
+    // attach the previous values of the changed fields to store events
+    private boolean diff;
+    // emit only the latest event per primary key within this window, 0 disables coalescing
+    private long coalesceMillis;
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public SubscriptionOptions setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public EventQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public SubscriptionOptions setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = EventQueue.OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+        return this;
+    }
+
+    public long getIdleConsumerMillis() {
+        return idleConsumerMillis;
+    }
+
+    public SubscriptionOptions setIdleConsumerMillis(long idleConsumerMillis) {
+        this.idleConsumerMillis = idleConsumerMillis;
+        return this;
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public SubscriptionOptions setFields(Collection<String> names) {
+        this.fields.addAll(names);
+        return this;
+    }
+
+    /** Comma separated field names */
+    public SubscriptionOptions setFields(String names) {
+        return setFields(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(names));
+    }
+
+    public Map<String, Object> getWhere() {
+        return where;
+    }
+
+    public SubscriptionOptions where(String field, Object value) {
+        this.where.put(field, value);
+        return this;
+    }
+
+    public Set<String> getChangedFields() {
+        return changedFields;
+    }
+
+    public SubscriptionOptions setChangedFields(Collection<String> names) {
+        this.changedFields.addAll(names);
+        return this;
+    }
+
+    /** Comma separated field names */
+    public SubscriptionOptions setChangedFields(String names) {
+        return setChangedFields(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(names));
+    }
+
+    public boolean isDiff() {
+        return diff;
+    }
+
+    public SubscriptionOptions setDiff(boolean diff) {
+        this.diff = diff;
+        return this;
+    }
+
+    public long getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    public SubscriptionOptions setCoalesceMillis(long coalesceMillis) {
+        this.coalesceMillis = coalesceMillis;
+        return this;
+    }
+
+    /** Whether the subscription needs its own payload instead of the shared event */
+    public boolean isShaped() {
+        return !fields.isEmpty() || diff;
+    }
+}
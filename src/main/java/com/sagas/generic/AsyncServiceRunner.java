@@ -0,0 +1,205 @@
+package com.sagas.generic;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.sagas.actions.ActionRequest;
+import com.sagas.actions.ActionResponse;
+import com.sagas.actions.RemoteAction;
+import com.sagas.meta.model.TaFieldValue;
+import com.sagas.meta.model.TaJson;
+import com.sagas.security.SecurityManager;
+import org.apache.ofbiz.base.conversion.ConversionException;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericDelegator;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs service requests marked with "_async" on a dedicated pool, so slow services
+ * don't hold a broker worker. The caller gets an "accepted" reply right away, then
+ * a "running" and a final "completed" or "failed" message on the same reply queue,
+ * all with the correlation id of the request. Every message carries "_status" and
+ * "_jobId"; the status of recent jobs can be queried with serviceStatus.
+ */
+@Singleton
+public class AsyncServiceRunner {
+    public static final String module = AsyncServiceRunner.class.getName();
+    private static final String resource = "sagas";
+
+    public enum Status {
+        accepted, running, completed, failed
+    }
+
+    private final LocalDispatcher dispatcher;
+    private final GenericDelegator delegator;
+    private final SecurityManager securityManager;
+    private final ThreadPoolExecutor pool;
+    private final Cache<String, Job> jobs;
+
+    private static class Job {
+        final String id;
+        final String serviceName;
+        final long submitted = System.currentTimeMillis();
+        volatile Status status = Status.accepted;
+        volatile long started;
+        volatile long finished;
+        volatile int result = -1;
+        volatile List<Object> messages;
+
+        Job(String id, String serviceName) {
+            this.id = id;
+            this.serviceName = serviceName;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = Maps.newHashMap();
+            map.put("_jobId", id);
+            map.put("_service", serviceName);
+            map.put("_status", status.name());
+            map.put("submitted", submitted);
+            map.put("started", started);
+            map.put("finished", finished);
+            map.put("_result", result);
+            if (messages != null) {
+                map.put("messages", messages);
+            }
+            return map;
+        }
+    }
+
+    @Inject
+    public AsyncServiceRunner(LocalDispatcher dispatcher, GenericDelegator delegator, SecurityManager securityManager) {
+        this.dispatcher = dispatcher;
+        this.delegator = delegator;
+        this.securityManager = securityManager;
+        int threads = UtilProperties.getPropertyAsInteger(resource, "service.async.threads", 4);
+        int queueSize = UtilProperties.getPropertyAsInteger(resource, "service.async.queueSize", 1000);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "sagas-service-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.jobs = CacheBuilder.newBuilder()
+                .expireAfterWrite(UtilProperties.getPropertyAsLong(resource, "service.async.retentionSeconds", 600),
+                        TimeUnit.SECONDS)
+                .maximumSize(UtilProperties.getPropertyAsLong(resource, "service.async.maxJobs", 100000))
+                .build();
+    }
+
+    public static boolean isAsync(Map<String, Object> request) {
+        Object async = request.get("_async");
+        return Boolean.TRUE.equals(async) || "true".equals(async);
+    }
+
+    /**
+     * Queue the request, every message of the job, starting with "accepted", is
+     * handed to the publisher. When the pool is full the job fails right away.
+     */
+    public void submit(String jobId, Map<String, Object> request, boolean binary,
+                       Consumer<Map<String, Object>> publisher) {
+        Job job = new Job(jobId, (String) request.get("_service"));
+        jobs.put(jobId, job);
+        publisher.accept(message(job));
+        try {
+            pool.execute(() -> run(job, request, binary, publisher));
+        } catch (RejectedExecutionException e) {
+            job.status = Status.failed;
+            job.result = ServiceInvoker.ErrCode.ERR_OTHER.getID();
+            job.messages = Lists.newArrayList("Async service queue is full");
+            job.finished = System.currentTimeMillis();
+            Map<String, Object> rejected = message(job);
+            rejected.put("messages", job.messages);
+            publisher.accept(rejected);
+        }
+    }
+
+    private static Map<String, Object> message(Job job) {
+        Map<String, Object> message = Maps.newHashMap();
+        message.put("_result", job.status == Status.failed ? job.result : ServiceInvoker.ErrCode.Success.getID());
+        message.put("_jobId", job.id);
+        message.put("_status", job.status.name());
+        return message;
+    }
+
+    private void run(Job job, Map<String, Object> request, boolean binary, Consumer<Map<String, Object>> publisher) {
+        job.started = System.currentTimeMillis();
+        job.status = Status.running;
+        publisher.accept(message(job));
+
+        Map<String, Object> response;
+        try {
+            ServiceInvoker invoker = new ServiceInvoker(dispatcher, delegator, securityManager, null, request);
+            invoker.setBinary(binary);
+            invoker.setEncodeResult(false);
+            ServiceInvoker.ErrCode code = invoker.invoke();
+            if (code == ServiceInvoker.ErrCode.Success) {
+                response = invoker.getResult();
+                boolean error = ServiceUtil.isError(response) || ServiceUtil.isFailure(response);
+                job.status = error ? Status.failed : Status.completed;
+                job.result = error ? ServiceInvoker.ErrCode.ERR_INVOKE.getID() : code.getID();
+            } else {
+                response = Maps.newHashMap();
+                job.status = Status.failed;
+                job.result = code.getID();
+                job.messages = Lists.newArrayList(invoker.getErrorMessages());
+                response.put("messages", job.messages);
+            }
+        } catch (RuntimeException e) {
+            Debug.logError(e, e.getMessage(), module);
+            response = Maps.newHashMap();
+            job.status = Status.failed;
+            job.result = ServiceInvoker.ErrCode.ERR_OTHER.getID();
+            job.messages = Lists.newArrayList(e.getMessage());
+            response.put("message", e.getMessage());
+        }
+        job.finished = System.currentTimeMillis();
+        response.put("_result", job.result);
+        response.put("_jobId", job.id);
+        response.put("_status", job.status.name());
+        publisher.accept(response);
+    }
+
+    /** Status of a job, null when it is unknown or expired */
+    public Map<String, Object> getStatus(String jobId) {
+        Job job = jobs.getIfPresent(jobId);
+        return job != null ? job.toMap() : null;
+    }
+
+    @RemoteAction
+    public ActionResponse serviceStatus(ActionRequest request) throws InvalidProtocolBufferException, ConversionException, ClassNotFoundException {
+        TaFieldValue jobId = TaFieldValue.parseFrom(request.getPayload());
+        Map<String, Object> status = getStatus(jobId.getStringVal());
+        if (status == null) {
+            status = Maps.newHashMap();
+            status.put("_jobId", jobId.getStringVal());
+            status.put("_status", "unknown");
+        }
+        TaJson payload = TaJson.newBuilder().setContent(ValueHelper.mapToJson(status)).build();
+        return new ActionResponse(0, payload.toByteString());
+    }
+
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    public void stop() {
+        pool.shutdown();
+    }
+}
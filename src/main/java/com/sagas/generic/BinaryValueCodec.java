@@ -0,0 +1,206 @@
+package com.sagas.generic;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.entity.GenericEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact tagged binary encoding for service and entity values.
+ *
+ * Every value is written as a one byte type tag followed by its payload,
+ * strings are length prefixed UTF-8. Unlike the JSON converters the typed
+ * tags keep timestamps, dates and decimals intact across the wire.
+ */
+public class BinaryValueCodec {
+    public static final String CONTENT_TYPE = "application/x-sagas-binary";
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte DECIMAL = 5;
+    static final byte BOOLEAN = 6;
+    static final byte TIMESTAMP = 7;
+    static final byte DATE = 8;
+    static final byte TIME = 9;
+    static final byte LIST = 10;
+    static final byte MAP = 11;
+    static final byte BYTES = 12;
+    static final byte ENTITY = 13;
+
+    public static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static Object decode(byte[] data) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static Map<String, Object> decodeMap(byte[] data) throws IOException {
+        Object value = decode(data);
+        if (!(value instanceof Map)) {
+            throw new IOException("Binary payload is not a map");
+        }
+        return UtilGenerics.cast(value);
+    }
+
+    public static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            writeString(out, ((BigDecimal) value).toPlainString());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(DATE);
+            out.writeLong(((java.sql.Date) value).getTime());
+        } else if (value instanceof java.sql.Time) {
+            out.writeByte(TIME);
+            out.writeLong(((java.sql.Time) value).getTime());
+        } else if (value instanceof java.util.Date) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((java.util.Date) value).getTime());
+            out.writeInt(0);
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof GenericEntity) {
+            GenericEntity entity = (GenericEntity) value;
+            out.writeByte(ENTITY);
+            writeString(out, entity.getEntityName());
+            writeEntries(out, entity);
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            writeEntries(out, (Map<?, ?>) value);
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                write(out, item);
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    public static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case DECIMAL:
+                return new BigDecimal(readString(in));
+            case BOOLEAN:
+                return in.readBoolean();
+            case TIMESTAMP:
+                Timestamp ts = new Timestamp(in.readLong());
+                int nanos = in.readInt();
+                if (nanos != 0) {
+                    ts.setNanos(nanos);
+                }
+                return ts;
+            case DATE:
+                return new java.sql.Date(in.readLong());
+            case TIME:
+                return new java.sql.Time(in.readLong());
+            case BYTES:
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                return data;
+            case ENTITY:
+                // entities are decoded as plain maps tagged with their entity name
+                String entityName = readString(in);
+                Map<String, Object> fields = readEntries(in);
+                fields.put("_entity", entityName);
+                return fields;
+            case MAP:
+                return readEntries(in);
+            case LIST:
+                int size = in.readInt();
+                List<Object> list = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            default:
+                throw new IOException("Unknown binary value tag " + tag);
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(out, String.valueOf(entry.getKey()));
+            write(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, Object> readEntries(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> map = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, read(in));
+        }
+        return map;
+    }
+
+    private static void writeString(DataOutputStream out, String val) throws IOException {
+        byte[] data = val.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
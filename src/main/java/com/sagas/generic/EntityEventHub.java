@@ -2,39 +2,76 @@ package com.sagas.generic;
 
 import com.google.common.collect.Maps;
 import com.sagas.SagasConf;
-import com.sagas.actors.bus.RabbitEventProvider;
-import org.apache.ofbiz.base.conversion.ConversionException;
+import com.sagas.events.EntityEvent;
+import com.sagas.events.EntityEventPublisher;
+import com.sagas.events.EventCoalescer;
+import com.sagas.events.EventOutbox;
+import com.sagas.events.EventQueue;
+import com.sagas.events.EventSink;
+import com.sagas.events.GrpcStreamEventSink;
+import com.sagas.events.MemoryEventSink;
+import com.sagas.events.Subscription;
+import com.sagas.events.SubscriptionIndex;
+import com.sagas.events.SubscriptionOptions;
+import com.sagas.meta.model.TaJsonEntity;
+import io.grpc.stub.StreamObserver;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericEntity;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.eca.EntityEcaHandler;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
 import org.apache.ofbiz.entityext.eca.DelegatorEcaHandler;
 import org.apache.ofbiz.entityext.eca.EntityEcaRule;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Singleton
 public class EntityEventHub implements EntityEcaHandler<EntityEcaRule> {
     public static final String module = EntityEventHub.class.getName();
     private static EntityEventHub instance;
     @Inject
-    Provider<KafkaProvider> kafkaProvider;
+    Provider<EntityEventPublisher> eventPublisher;
     @Inject
-    Provider<RabbitEventProvider> rabbitProvider;
+    Provider<EventOutbox> eventOutbox;
+    // sinks by name, bound in SagasBridge.buildContext
+    @Inject
+    Map<String, EventSink> sinks;
+    @Inject
+    Provider<MemoryEventSink> memorySink;
+    @Inject
+    Provider<GrpcStreamEventSink> grpcSink;
 
     private EntityEcaHandler<EntityEcaRule> defaultHandler;
     private GenericDelegator delegator;
+    // publish committed changes only, through the transactional outbox
+    private final boolean outboxMode = "outbox".equals(UtilProperties.getPropertyValue("sagas", "event.delivery", "publisher"));
+
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    // in-process listeners of successful create, store and remove operations, by entity name
+    private final Map<String, List<Consumer<GenericEntity>>> changeListeners = new ConcurrentHashMap<>();
+    // changes of the open transactions, the listeners are called again once they complete
+    private final Map<Transaction, ChangeSync> pendingChanges = new ConcurrentHashMap<>();
+    // database values of the rows being stored on this thread, taken at validate by entity key,
+    // at return the value is already synchronized with the datasource
+    private final ThreadLocal<Map<String, Map<String, Object>>> beforeImages = ThreadLocal.withInitial(Maps::newHashMap);
+    // flushes the coalescing subscriptions, created with the first one
+    private ScheduledExecutorService flushScheduler;
 
-    private Map<String, SubscriberInfo> eventSubscriberTypes = Maps.newConcurrentMap();
-    private ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> eventSubscribers = new ConcurrentHashMap<String, ConcurrentLinkedQueue<String>>();
     @Inject
     private EntityEventHub(GenericDelegator delegator) {
         this.delegator = delegator;
@@ -65,20 +102,6 @@ public class EntityEventHub implements EntityEcaHandler<EntityEcaRule> {
         return defaultHandler.getEntityEventMap(entityName);
     }
 
-    private String createMessage(String operation, String event, GenericEntity value, boolean isError) throws ClassNotFoundException, ConversionException {
-        Map<String, Object> meta = Maps.newHashMap();
-        meta.put("_operation", operation);
-        meta.put("_event", event);
-        meta.put("_entity", value.getEntityName());
-        meta.put("_timestamp", System.currentTimeMillis());
-        meta.put("_error", isError);
-        return ValueHelper.entityToJson(value, meta);
-    }
-
-    private String createEntityEventTopic(GenericEntity value){
-        return "measure.entities."+value.getEntityName();
-    }
-
     @Override
     public void evalRules(String currentOperation, Map<String, List<EntityEcaRule>> eventMap, String event, GenericEntity value, boolean isError) throws GenericEntityException {
         if (SagasConf.trackOn) {
@@ -87,87 +110,336 @@ public class EntityEventHub implements EntityEcaHandler<EntityEcaRule> {
                     + ", event " + event + ".", module);
         }
 
+        // the envelope is built once and shared by every sink of this event
+        EntityEvent entityEvent = null;
         if(SagasConf.measureUpdaterOn){
             if(!currentOperation.equalsIgnoreCase("find")) {
-                if (event.equals("run")||event.equals("return")) {
-                    try {
-                        kafkaProvider.get().post("measure.entities",
-                                createMessage(currentOperation, event, value, isError));
-                        rabbitProvider.get().post(createEntityEventTopic(value),
-                                createMessage(currentOperation, event, value, isError));
-                    } catch (Exception e) {
-                        Debug.logError(e, e.getMessage(), module);
+                if (outboxMode) {
+                    if (event.equals("return") && !EventOutbox.TX_ENTITY.equals(value.getEntityName())) {
+                        entityEvent = new EntityEvent(currentOperation, event, value, isError);
+                        eventOutbox.get().append(entityEvent);
                     }
+                } else if (event.equals("run")||event.equals("return")) {
+                    // serialization and broker hand-off happen on the publisher threads
+                    entityEvent = new EntityEvent(currentOperation, event, value, isError);
+                    eventPublisher.get().publish(entityEvent);
                 }
             }
         }
 
+        if (!changeListeners.isEmpty() && !isError && event.equals("return")
+                && !currentOperation.equalsIgnoreCase("find")) {
+            List<Consumer<GenericEntity>> listeners = changeListeners.get(value.getEntityName());
+            if (listeners != null) {
+                notifyChange(listeners, value);
+            }
+        }
+
         // operation: create, store, remove, find
         // event: validate, run, return
-        String key = value.getEntityName() + '.' + currentOperation + '.' + event;
-        SubscriberInfo subscriberInfo = eventSubscriberTypes.get(key);
-        if (subscriberInfo != null) {
+        Map<String, Object> before = null;
+        if (EntityEcaHandler.OP_STORE.equals(currentOperation) && needsBeforeImage(value.getEntityName())) {
+            before = beforeImage(event, value);
+        }
+
+        Subscription[] subscribers = subscriptions.lookup(value.getEntityName(), currentOperation, event);
+        for (Subscription subscriber : subscribers) {
+            if (!subscriber.accepts(currentOperation, value, before)) {
+                continue;
+            }
             try {
-                switch (subscriberInfo.type) {
-                    case Queue:
-                        ConcurrentLinkedQueue<String> subQ = eventSubscribers.get(key);
-                        if (subQ != null) {
-                            subQ.add(createMessage(currentOperation, event, value, isError));
-                        }
-                        break;
-                    case Kafka:
-                        kafkaProvider.get().post(subscriberInfo.location,
-                                createMessage(currentOperation, event, value, isError));
-                        break;
+                EntityEvent payload;
+                if (subscriber.getOptions().isShaped()) {
+                    payload = subscriber.shape(currentOperation, event, value, isError, before);
+                } else {
+                    if (entityEvent == null) {
+                        entityEvent = new EntityEvent(currentOperation, event, value, isError);
+                    }
+                    payload = entityEvent;
                 }
-            } catch (ConversionException e) {
-                Debug.logError(e, e.getMessage(), module);
-            } catch (ClassNotFoundException e) {
-                Debug.logError(e, e.getMessage(), module);
+                if (subscriber.getCoalescer() != null) {
+                    // hot rows collapse to their latest state, flushed once per window
+                    subscriber.getCoalescer().offer(payload.getKey(), payload);
+                } else {
+                    deliver(subscriber, payload);
+                }
+            } catch (Exception e) {
+                Debug.logError(e, "Cannot deliver event to " + subscriber.getSink().getName() + " sink", module);
             }
         }
 
         defaultHandler.evalRules(currentOperation, eventMap, event, value, isError);
     }
 
+    /**
+     * Calls the listeners now and, inside a transaction, once more after it completed:
+     * a cache reloaded between the change and the commit would otherwise keep the old
+     * row, and one reloaded by the changing thread would keep a rolled back row.
+     */
+    /** A failing listener is logged, it must not fail the entity operation or keep the others from running */
+    private static void callListeners(List<Consumer<GenericEntity>> listeners, GenericEntity value) {
+        for (Consumer<GenericEntity> listener : listeners) {
+            try {
+                listener.accept(value);
+            } catch (RuntimeException e) {
+                Debug.logError(e, "Change listener of " + value.getEntityName() + " failed", module);
+            }
+        }
+    }
+
+    private void notifyChange(List<Consumer<GenericEntity>> listeners, GenericEntity value) {
+        callListeners(listeners, value);
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction tx = TransactionUtil.getTransactionManager().getTransaction();
+                ChangeSync sync = pendingChanges.get(tx);
+                if (sync == null) {
+                    sync = new ChangeSync(tx);
+                    TransactionUtil.registerSynchronization(sync);
+                    pendingChanges.put(tx, sync);
+                }
+                sync.changes.put(EntityEvent.keyOf(value), value);
+            }
+        } catch (Exception e) {
+            Debug.logError(e, "Cannot notify the change listeners of " + value.getEntityName() + " after commit", module);
+        }
+    }
+
+    private class ChangeSync implements Synchronization {
+        private final Transaction tx;
+        // the last value of every changed row
+        private final Map<String, GenericEntity> changes = Maps.newLinkedHashMap();
+
+        ChangeSync(Transaction tx) {
+            this.tx = tx;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            pendingChanges.remove(tx);
+            for (GenericEntity value : changes.values()) {
+                List<Consumer<GenericEntity>> listeners = changeListeners.get(value.getEntityName());
+                if (listeners != null) {
+                    callListeners(listeners, value);
+                }
+            }
+        }
+    }
+
+    private boolean needsBeforeImage(String entityName) {
+        for (String event : new String[]{EntityEcaHandler.EV_VALIDATE, EntityEcaHandler.EV_RUN, EntityEcaHandler.EV_RETURN}) {
+            for (Subscription subscriber : subscriptions.lookup(entityName, EntityEcaHandler.OP_STORE, event)) {
+                if (subscriber.needsBeforeImage()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Takes the before image at validate and hands it out until return */
+    private Map<String, Object> beforeImage(String event, GenericEntity value) {
+        Map<String, Map<String, Object>> images = beforeImages.get();
+        String key = EntityEvent.keyOf(value);
+        if (EntityEcaHandler.EV_VALIDATE.equals(event)) {
+            if (images.size() >= 256) {
+                // stores that failed before their return event
+                images.clear();
+            }
+            Map<String, Object> image = EntityEvent.beforeImage(value);
+            images.put(key, image);
+            return image;
+        }
+        return EntityEcaHandler.EV_RETURN.equals(event) ? images.remove(key) : images.get(key);
+    }
+
+    private void deliver(Subscription subscriber, EntityEvent payload) throws Exception {
+        subscriber.getSink().deliver(subscriber, payload);
+    }
+
+    private void flush(Subscription subscriber) {
+        subscriber.getCoalescer().flush(payload -> {
+            try {
+                deliver(subscriber, payload);
+            } catch (Exception e) {
+                // keep the scheduled flush alive
+                Debug.logError(e, "Cannot deliver coalesced event of " + payload.getEntityName(), module);
+            }
+        });
+    }
+
+    private synchronized ScheduledExecutorService getFlushScheduler() {
+        if (flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sagas-event-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return flushScheduler;
+    }
+
+    public void stop() {
+        synchronized (this) {
+            for (Subscription subscription : subscriptions.getSubscriptions()) {
+                if (subscription.getCoalescer() != null) {
+                    subscription.getFlushTask().cancel(false);
+                    flush(subscription);
+                }
+            }
+            if (flushScheduler != null) {
+                flushScheduler.shutdown();
+            }
+        }
+        for (EventSink sink : sinks.values()) {
+            sink.stop();
+        }
+        if (outboxMode) {
+            eventOutbox.get().stop();
+        }
+        eventPublisher.get().stop();
+    }
+
     /*
     while (!queue.isEmpty()) {
         System.out.println(queue.poll());
     }
      */
-    public ConcurrentLinkedQueue<String> getEventQueue(String entity, String operation, String event) {
-        return this.eventSubscribers.get(entity + '.' + operation + '.' + event);
+    public EventQueue getEventQueue(String entity, String operation, String event) {
+        Subscription subscription = subscriptions.find(entity, operation, event, MemoryEventSink.NAME);
+        return subscription != null ? memorySink.get().getQueue(subscription) : null;
+    }
+
+    /**
+     * Stream the events of a grpc subscription to the response observer of a
+     * server-streaming call, until the call is cancelled or the subscription removed.
+     */
+    public void attachStream(String entity, String operation, String event, StreamObserver<TaJsonEntity> observer) {
+        Subscription subscription = subscriptions.find(entity, operation, event, GrpcStreamEventSink.NAME);
+        if (subscription == null) {
+            throw new RuntimeException("No grpc subscription for " + entity + '.' + operation + '.' + event);
+        }
+        grpcSink.get().attach(subscription, observer);
+    }
+
+    /**
+     * Take up to maxItems events of a queue subscription in one call, waiting at most
+     * timeoutMs for the first one. Each consumer id reads with its own cursor.
+     */
+    public List<String> drain(String entity, String operation, String event, String consumer, int maxItems, long timeoutMs) {
+        EventQueue queue = getEventQueue(entity, operation, event);
+        if (queue == null) {
+            throw new RuntimeException("No event queue for " + entity + '.' + operation + '.' + event);
+        }
+        return queue.drain(consumer, maxItems, timeoutMs);
+    }
+
+    public List<String> drain(String entity, String operation, String event, int maxItems, long timeoutMs) {
+        return drain(entity, operation, event, EventQueue.DEFAULT_CONSUMER, maxItems, timeoutMs);
+    }
+
+    /** Drop the cursor of a queue consumer that has stopped reading */
+    public void removeConsumer(String entity, String operation, String event, String consumer) {
+        EventQueue queue = getEventQueue(entity, operation, event);
+        if (queue != null) {
+            queue.removeConsumer(consumer);
+        }
+    }
+
+    /**
+     * Same as drain, but returns the events as one json array string, so that
+     * py4j clients get the whole batch without a round-trip per element.
+     */
+    public String drainJson(String entity, String operation, String event, String consumer, int maxItems, long timeoutMs) {
+        return "[" + String.join(",", drain(entity, operation, event, consumer, maxItems, timeoutMs)) + "]";
     }
 
     public void registerSubscriber(String entity, String operation, String event, String type) {
-        String key = entity + '.' + operation + '.' + event;
-        if (type.equalsIgnoreCase("queue")) {
-            this.eventSubscriberTypes.put(key, new SubscriberInfo(SubscriberType.Queue, ""));
-            if (getEventQueue(entity, operation, event) == null) {
-                this.eventSubscribers.put(key, new ConcurrentLinkedQueue<String>());
-            } else {
-                // throw new RuntimeException("Event queue for "+entity + '.' + operation + '.' + event+" is already exists");
-                Debug.logWarning("Event queue for " + entity + '.' + operation + '.' + event + " is already exists", module);
-            }
-        } else if (type.equalsIgnoreCase("kafka")) {
-            this.eventSubscriberTypes.put(key, new SubscriberInfo(SubscriberType.Kafka, "event." + entity));
-        }else{
+        registerSubscriber(entity, operation, event, type, new SubscriptionOptions());
+    }
+
+    public void registerSubscriber(String entity, String operation, String event, String type,
+                                   SubscriptionOptions options) {
+        registerSubscriber(entity, operation, event, type, null, options);
+    }
+
+    /**
+     * Register a subscriber, the entity may be a glob pattern like "Order*",
+     * the operation and event may be "*" to subscribe to all of them.
+     * The type names the sink: queue, file, kafka or rabbit; the location is
+     * the sink specific destination (topic, routing key, file), null for the default.
+     */
+    public synchronized void registerSubscriber(String entity, String operation, String event, String type,
+                                                String location, SubscriptionOptions options) {
+        EventSink sink = sinks.get(type.toLowerCase());
+        if (sink == null) {
             throw new RuntimeException("Don't support subscriber type "+type);
         }
+
+        if (subscriptions.find(entity, operation, event, sink.getName()) != null) {
+            // throw new RuntimeException("Event queue for "+entity + '.' + operation + '.' + event+" is already exists");
+            Debug.logWarning(type + " subscriber for " + entity + '.' + operation + '.' + event + " is already exists", module);
+            return;
+        }
+        Subscription subscription = new Subscription(entity, operation, event, sink, location, options);
+        sink.open(subscription);
+        if (subscription.getCoalescer() != null) {
+            long window = options.getCoalesceMillis();
+            subscription.setFlushTask(getFlushScheduler().scheduleAtFixedRate(() -> flush(subscription),
+                    window, window, TimeUnit.MILLISECONDS));
+        }
+        subscriptions.add(subscription);
     }
 
-    public enum SubscriberType {
-        Queue, Kafka
+    public synchronized void unregisterSubscriber(String entity, String operation, String event, String type) {
+        Subscription subscription = subscriptions.find(entity, operation, event, type.toLowerCase());
+        if (subscription != null) {
+            subscriptions.remove(subscription);
+            if (subscription.getCoalescer() != null) {
+                subscription.getFlushTask().cancel(false);
+                flush(subscription);
+            }
+            subscription.getSink().close(subscription);
+        }
     }
 
-    public static class SubscriberInfo {
-        public SubscriberType type;
-        public String location;
+    /**
+     * Call the listener with the value of every successful create, store and remove
+     * of the entity, on the thread doing the change, e.g. to invalidate a cache.
+     * Changes made inside a transaction are reported again once it has completed.
+     */
+    public void addChangeListener(String entityName, Consumer<GenericEntity> listener) {
+        changeListeners.computeIfAbsent(entityName, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
 
-        public SubscriberInfo(SubscriberType type, String location) {
-            this.type = type;
-            this.location = location;
+    /** Throughput and lag of every sink, by sink name */
+    public Map<String, Map<String, Object>> getSinkStats() {
+        Map<String, Map<String, Object>> stats = Maps.newLinkedHashMap();
+        for (EventSink sink : sinks.values()) {
+            stats.put(sink.getName(), sink.getStats());
         }
+        return stats;
+    }
 
+    /**
+     * Coalescing counters of a subscription: received, collapsed, emitted and pending events,
+     * or null when the subscription doesn't coalesce.
+     */
+    public Map<String, Long> getCoalescingStats(String entity, String operation, String event, String type) {
+        Subscription subscription = subscriptions.find(entity, operation, event, type.toLowerCase());
+        if (subscription == null || subscription.getCoalescer() == null) {
+            return null;
+        }
+        EventCoalescer coalescer = subscription.getCoalescer();
+        Map<String, Long> stats = Maps.newLinkedHashMap();
+        stats.put("received", coalescer.getReceivedCount());
+        stats.put("collapsed", coalescer.getCollapsedCount());
+        stats.put("emitted", coalescer.getEmittedCount());
+        stats.put("pending", (long) coalescer.getPendingCount());
+        return stats;
     }
 }
@@ -1,28 +1,124 @@
 package com.sagas.generic;
 
+import com.google.protobuf.MessageLite;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Shared kafka producer, configured from the "kafka.*" entries of sagas.properties
+ * (the prefix is stripped and the rest is passed to the producer as is).
+ *
+ * Records are keyed, so all events of one row land on the same partition in
+ * order; keys and values are sent as bytes, strings are encoded as UTF-8.
+ */
 @Singleton
 public class KafkaProvider {
-    private org.apache.kafka.clients.producer.Producer producer;
+    public static final String module = KafkaProvider.class.getName();
+    private static final String resource = "sagas";
+    private static final String PREFIX = "kafka.";
+
+    private final Producer<byte[], byte[]> producer;
+    private final LongAdder posted = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    @Inject
     public KafkaProvider(){
-        //Configure the Producer
-        Properties configProperties = new Properties();
-        configProperties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,"localhost:9092");
-        configProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.ByteArraySerializer");
-        configProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
+        this(new KafkaProducer<>(producerConfig(), new ByteArraySerializer(), new ByteArraySerializer()));
+    }
 
-        this.producer = new KafkaProducer(configProperties);
+    public KafkaProvider(Producer<byte[], byte[]> producer) {
+        this.producer = producer;
     }
 
+    static Properties producerConfig() {
+        Properties config = new Properties();
+        config.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        config.put(ProducerConfig.ACKS_CONFIG, "1");
+        config.put(ProducerConfig.LINGER_MS_CONFIG, "5");
+        config.put(ProducerConfig.BATCH_SIZE_CONFIG, "65536");
+        config.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+
+        Properties properties = UtilProperties.getProperties(resource);
+        if (properties != null) {
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(PREFIX)) {
+                    config.put(name.substring(PREFIX.length()), properties.getProperty(name).trim());
+                }
+            }
+        }
+        return config;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Unkeyed record, the producer spreads these over the partitions */
     public void post(String topicName, String line){
-        ProducerRecord<String, String> rec = new ProducerRecord<String, String>(topicName,line);
-        producer.send(rec);
+        send(topicName, null, bytes(line));
+    }
+
+    /** The future completes once the broker has acknowledged the record */
+    public Future<RecordMetadata> post(String topicName, String key, String value) {
+        return send(topicName, bytes(key), bytes(value));
+    }
+
+    public void post(String topicName, String key, byte[] value) {
+        send(topicName, bytes(key), value);
+    }
+
+    public void post(String topicName, String key, MessageLite value) {
+        send(topicName, bytes(key), value.toByteArray());
+    }
+
+    private Future<RecordMetadata> send(String topicName, byte[] key, byte[] value) {
+        long start = System.nanoTime();
+        posted.increment();
+        return producer.send(new ProducerRecord<>(topicName, key, value), (metadata, e) -> {
+            latency.record(System.nanoTime() - start);
+            if (e != null) {
+                failed.increment();
+                Debug.logError(e, "Cannot send record to " + topicName, module);
+            } else {
+                sent.increment();
+            }
+        });
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /** Records handed to the producer and not acknowledged yet */
+    public long getInFlightCount() {
+        return posted.sum() - sent.sum() - failed.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public void flush() {
+        producer.flush();
     }
 
     public void stop(){
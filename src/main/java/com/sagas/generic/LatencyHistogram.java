@@ -0,0 +1,70 @@
+package com.sagas.generic;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets, bucket i
+ * counts the samples below 2^i microseconds. Percentiles are reported as the
+ * upper bound of the bucket they fall in, which is precise enough for alerting.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalMicros.add(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMeanMicros() {
+        long total = count.sum();
+        return total == 0 ? 0 : totalMicros.sum() / total;
+    }
+
+    /** Upper bound in microseconds below which the given fraction (0..1) of the samples fall */
+    public long percentileMicros(double fraction) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= threshold) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = Maps.newLinkedHashMap();
+        snapshot.put("count", getCount());
+        snapshot.put("meanMicros", getMeanMicros());
+        snapshot.put("p50Micros", percentileMicros(0.5));
+        snapshot.put("p99Micros", percentileMicros(0.99));
+        snapshot.put("p999Micros", percentileMicros(0.999));
+        return snapshot;
+    }
+}
@@ -8,20 +8,31 @@ import com.google.common.collect.Maps;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.multibindings.MapBinder;
 import com.sagas.actions.ActionsManager;
 import com.sagas.actors.bus.BlueSrv;
 import com.sagas.blueprints.BlueprintManager;
 import com.sagas.blueprints.HttpServerActorInteraction;
+import com.sagas.events.EventOutbox;
+import com.sagas.events.EventSink;
+import com.sagas.events.KafkaEventSink;
+import com.sagas.events.MappedFileEventSink;
+import com.sagas.events.MemoryEventSink;
+import com.sagas.events.RabbitEventSink;
+import com.sagas.hybrid.BrokerConnectionManager;
 import com.sagas.hybrid.MetaBroker;
 import com.sagas.hybrid.ServiceBroker;
 import com.sagas.meta.FormManager;
 import com.sagas.meta.MetaManager;
 import com.sagas.products.ProductForms;
+import com.sagas.security.KeyRegistry;
+import com.sagas.security.SecurityManager;
 import org.apache.ofbiz.base.container.Container;
 import org.apache.ofbiz.base.container.ContainerConfig;
 import org.apache.ofbiz.base.container.ContainerException;
 import org.apache.ofbiz.base.start.StartupCommand;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.DelegatorFactory;
 import org.apache.ofbiz.entity.GenericDelegator;
@@ -197,7 +208,20 @@ public class SagasBridge implements Container, ComponentProvider {
                 bind(LocalDispatcher.class).toInstance(getDispatcher());
                 bind(GatewayServer.class).toInstance(gateway);
 
+                // event sinks, selected by name when a subscriber is registered
+                MapBinder<String, EventSink> sinks = MapBinder.newMapBinder(binder(), String.class, EventSink.class);
+                sinks.addBinding(MemoryEventSink.NAME).to(MemoryEventSink.class);
+                sinks.addBinding(MappedFileEventSink.NAME).to(MappedFileEventSink.class);
+                sinks.addBinding(KafkaEventSink.NAME).to(KafkaEventSink.class);
+                sinks.addBinding(RabbitEventSink.NAME).to(RabbitEventSink.class);
+                // GrpcStreamEventSink is bound once a server-streaming call hands its
+                // observer to EntityEventHub.attachStream, no grpc service has one yet
+
                 bind(EntityEventHub.class).asEagerSingleton();
+                if ("outbox".equals(UtilProperties.getPropertyValue("sagas", "event.delivery", "publisher"))) {
+                    // relay the segments left by the last run without waiting for a change
+                    bind(EventOutbox.class).asEagerSingleton();
+                }
                 bind(ServiceBroker.class).asEagerSingleton();
                 bind(MetaBroker.class).asEagerSingleton();
 
@@ -209,7 +233,11 @@ public class SagasBridge implements Container, ComponentProvider {
 
         this.registries.put("entity_event_hub", EntityEventHub.class);
         this.registries.put("service_invoker", ServiceInvoker.class);
+        this.registries.put("service_batch", ServiceBatch.class);
+        this.registries.put("async_services", AsyncServiceRunner.class);
+        this.registries.put("broker_connections", BrokerConnectionManager.class);
         this.registries.put("meta_mgr", MetaManager.class);
+        this.registries.put("security_mgr", SecurityManager.class);
         this.registries.put("form_mgr", FormManager.class);
         this.registries.put("product_forms", ProductForms.class);
 
@@ -217,6 +245,11 @@ public class SagasBridge implements Container, ComponentProvider {
         actionsManager.initializeActions(injector);
         System.out.println( actionsManager.getActionNames());
 
+        if ("true".equals(UtilProperties.getPropertyValue("sagas", "meta.warmup", "false"))) {
+            injector.getInstance(MetaManager.class).warmUp(
+                    UtilProperties.getPropertyAsInteger("sagas", "meta.warmup.parallelism", 0));
+        }
+
         // akka actors
         injector.getInstance(HttpServerActorInteraction.class).start();
         injector.getInstance(BlueSrv.class).start();
@@ -237,6 +270,13 @@ public class SagasBridge implements Container, ComponentProvider {
     @Override
     public void stop() throws ContainerException {
         this.gateway.shutdown();
+        this.injector.getInstance(EntityEventHub.class).stop();
+        this.injector.getInstance(ServiceBatch.class).stop();
+        this.injector.getInstance(AsyncServiceRunner.class).stop();
+        this.injector.getInstance(ServiceBroker.class).stop();
+        this.injector.getInstance(MetaBroker.class).stop();
+        this.injector.getInstance(BrokerConnectionManager.class).stop();
+        this.injector.getInstance(KeyRegistry.class).stop();
         this.actorSystem.terminate();
     }
 
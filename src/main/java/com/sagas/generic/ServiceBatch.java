@@ -0,0 +1,209 @@
+package com.sagas.generic;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sagas.hybrid.RequestContext;
+import com.sagas.security.SecurityManager;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericDelegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch of service calls sent in one envelope:
+ * <pre>
+ * {"_batch": [{"_service": "createProduct", ...}, ...], "_mode": "independent", "_token": "..."}
+ * </pre>
+ * The user of the envelope is resolved once and used for every call. In "transaction"
+ * mode the calls run in order in one transaction, the first failing call rolls back
+ * the whole batch and the remaining calls are skipped. In "independent" mode (the
+ * default) each call runs in its own transaction, in parallel on the batch pool.
+ *
+ * Calls not started yet when the broker request is cancelled or expires report
+ * ERR_CANCELLED, see RequestContext.
+ *
+ * The response holds one result per call, in call order; its own "_result" is
+ * ERR_INVOKE when any call failed, in either mode, the committed calls of an
+ * independent batch are told apart by their results:
+ * {"_result": 2, "results": [{"_result": 0, ...}, {"_result": 2, "messages": [...]}]}
+ */
+@Singleton
+public class ServiceBatch {
+    public static final String module = ServiceBatch.class.getName();
+    private static final String resource = "sagas";
+    public static final String MODE_TRANSACTION = "transaction";
+    public static final String MODE_INDEPENDENT = "independent";
+    public static final int ERR_SKIPPED = -1;
+
+    private final LocalDispatcher dispatcher;
+    private final GenericDelegator delegator;
+    private final SecurityManager securityManager;
+    private final int maxCalls = UtilProperties.getPropertyAsInteger(resource, "service.batch.maxCalls", 10000);
+    private final int transactionTimeout = UtilProperties.getPropertyAsInteger(resource, "service.batch.transactionTimeout", 0);
+    private final ExecutorService pool;
+
+    @Inject
+    public ServiceBatch(LocalDispatcher dispatcher, GenericDelegator delegator, SecurityManager securityManager) {
+        this.dispatcher = dispatcher;
+        this.delegator = delegator;
+        this.securityManager = securityManager;
+        int parallelism = UtilProperties.getPropertyAsInteger(resource, "service.batch.parallelism", 0);
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "sagas-service-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static boolean isBatch(Map<String, Object> envelope) {
+        return envelope.get("_batch") instanceof List;
+    }
+
+    public String runJson(String json) throws Exception {
+        return ValueHelper.mapToJson(run(ValueHelper.jsonToMap(json)));
+    }
+
+    public byte[] runBinary(byte[] body) throws Exception {
+        return BinaryValueCodec.encode(run(BinaryValueCodec.decodeMap(body)));
+    }
+
+    public Map<String, Object> run(Map<String, Object> envelope) throws Exception {
+        List<Map<String, Object>> calls = UtilGenerics.cast(envelope.get("_batch"));
+        if (calls == null) {
+            throw new IllegalArgumentException("Batch envelope without _batch calls");
+        }
+        if (calls.size() > maxCalls) {
+            return errorResult(ServiceInvoker.ErrCode.ERR_VALIDATE,
+                    "Batch of " + calls.size() + " calls exceeds the limit of " + maxCalls);
+        }
+
+        // the envelope credentials apply to every call
+        GenericValue userLogin = new ServiceInvoker(dispatcher, delegator, securityManager, null, envelope)
+                .withUserLogin(envelope);
+        String mode = (String) envelope.getOrDefault("_mode", MODE_INDEPENDENT);
+
+        List<Map<String, Object>> results;
+        if (MODE_TRANSACTION.equals(mode)) {
+            results = runInTransaction(calls, userLogin);
+        } else if (MODE_INDEPENDENT.equals(mode)) {
+            results = runIndependent(calls, userLogin);
+        } else {
+            return errorResult(ServiceInvoker.ErrCode.ERR_VALIDATE, "Don't support batch mode " + mode);
+        }
+        boolean success = results.stream().allMatch(ServiceBatch::isSuccess);
+
+        Map<String, Object> response = Maps.newHashMap();
+        response.put("_result", success ? ServiceInvoker.ErrCode.Success.getID() : ServiceInvoker.ErrCode.ERR_INVOKE.getID());
+        response.put("results", results);
+        return response;
+    }
+
+    private List<Map<String, Object>> runInTransaction(List<Map<String, Object>> calls, GenericValue userLogin)
+            throws GenericTransactionException {
+        List<Map<String, Object>> results = Lists.newArrayListWithCapacity(calls.size());
+        RequestContext request = RequestContext.current();
+        int timeout = transactionTimeout;
+        if (request.hasDeadline()) {
+            // no point in holding the transaction after the caller has given up
+            int remaining = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(request.remainingMillis()));
+            timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+        }
+        boolean beganTransaction = timeout > 0 ? TransactionUtil.begin(timeout) : TransactionUtil.begin();
+        boolean failed = false;
+        try {
+            // one invoker for the whole sequence
+            ServiceInvoker invoker = new ServiceInvoker(dispatcher, delegator, securityManager, null, (String) null);
+            for (Map<String, Object> call : calls) {
+                if (failed) {
+                    results.add(UtilGenerics.toMap(String.class, "_result", ERR_SKIPPED));
+                    continue;
+                }
+                if (request.isCancelled()) {
+                    failed = true;
+                    results.add(UtilGenerics.toMap(String.class, "_result", ServiceInvoker.ErrCode.ERR_CANCELLED.getID()));
+                    continue;
+                }
+                Map<String, Object> result = invoke(invoker.reset(null, call), userLogin);
+                failed = !isSuccess(result);
+                results.add(result);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            Debug.logError(e, "Batch transaction fail", module);
+            throw e;
+        } finally {
+            if (failed) {
+                TransactionUtil.rollback(beganTransaction, "Service batch failed", null);
+            } else {
+                TransactionUtil.commit(beganTransaction);
+            }
+        }
+        return results;
+    }
+
+    private List<Map<String, Object>> runIndependent(List<Map<String, Object>> calls, GenericValue userLogin) {
+        List<CompletableFuture<Map<String, Object>>> futures = Lists.newArrayListWithCapacity(calls.size());
+        RequestContext request = RequestContext.current();
+        for (Map<String, Object> call : calls) {
+            futures.add(CompletableFuture.supplyAsync(() -> request.isCancelled()
+                    ? UtilGenerics.toMap(String.class, "_result", ServiceInvoker.ErrCode.ERR_CANCELLED.getID())
+                    : invoke(new ServiceInvoker(dispatcher, delegator, securityManager, null, call), userLogin), pool));
+        }
+        List<Map<String, Object>> results = Lists.newArrayListWithCapacity(calls.size());
+        for (CompletableFuture<Map<String, Object>> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private static Map<String, Object> invoke(ServiceInvoker invoker, GenericValue userLogin) {
+        invoker.setEncodeResult(false);
+        invoker.setUserLogin(userLogin);
+        try {
+            ServiceInvoker.ErrCode code = invoker.invoke();
+            if (code != ServiceInvoker.ErrCode.Success) {
+                return UtilGenerics.toMap(String.class, "_result", code.getID(),
+                        "messages", Lists.newArrayList(invoker.getErrorMessages()));
+            }
+            Map<String, Object> result = invoker.getResult();
+            if (ServiceUtil.isError(result) || ServiceUtil.isFailure(result)) {
+                result.put("_result", ServiceInvoker.ErrCode.ERR_INVOKE.getID());
+            }
+            return result;
+        } catch (RuntimeException e) {
+            Debug.logError(e, e.getMessage(), module);
+            return errorResult(ServiceInvoker.ErrCode.ERR_OTHER, e.getMessage());
+        }
+    }
+
+    private static boolean isSuccess(Map<String, Object> result) {
+        return Integer.valueOf(ServiceInvoker.ErrCode.Success.getID()).equals(result.get("_result"));
+    }
+
+    private static Map<String, Object> errorResult(ServiceInvoker.ErrCode code, String message) {
+        return UtilGenerics.toMap(String.class, "_result", code.getID(), "message", message);
+    }
+
+    public void stop() {
+        pool.shutdown();
+    }
+}
@@ -12,6 +12,8 @@ import org.apache.ofbiz.service.*;
 import org.apache.ofbiz.webapp.event.EventHandlerException;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.List;
 import java.util.Locale;
@@ -21,6 +23,8 @@ import java.util.TimeZone;
 public class ServiceInvoker {
     public static final String module = ServiceInvoker.class.getName();
     private String jsonParameters;
+    // already decoded parameters, from a binary request
+    private Map<String, Object> parameters;
     private String serviceName;
 
     private LocalDispatcher dispatcher;
@@ -31,6 +35,12 @@ public class ServiceInvoker {
     private TimeZone timeZone = TimeZone.getDefault();
     private Map<String, Object> result = null;
     private String jsonResult=null;
+    private boolean binary=false;
+    private byte[] binaryResult=null;
+    // false keeps the result as map only, for callers that encode several results at once
+    private boolean encodeResult=true;
+    // user resolved by the caller, skips the token and login lookup
+    private GenericValue userLogin=null;
 
     private SecurityManager securityManager;
 
@@ -43,10 +53,41 @@ public class ServiceInvoker {
         this.serviceName=serviceName;
     }
 
+    /**
+     * Invoker for a binary request, the parameters are decoded with BinaryValueCodec
+     * and the result is encoded with it as well, no JSON conversion takes place.
+     */
+    public ServiceInvoker(LocalDispatcher dispatcher, GenericDelegator delegator, SecurityManager securityManager,
+                          String serviceName, Map<String, Object> parameters){
+        this(dispatcher, delegator, securityManager, serviceName, (String) null);
+        this.parameters=parameters;
+        this.binary=true;
+    }
+
+    public byte[] getBinaryResult() {
+        return binaryResult;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
     public String getJsonResult() {
         return jsonResult;
     }
 
+    public void setEncodeResult(boolean encodeResult) {
+        this.encodeResult = encodeResult;
+    }
+
+    public void setUserLogin(GenericValue userLogin) {
+        this.userLogin = userLogin;
+    }
+
     public List<Object> getErrorMessages() {
         return errorMessages;
     }
@@ -76,25 +117,52 @@ public class ServiceInvoker {
         return userLogin;
     }
 
+    /**
+     * Prepare this invoker for another call, so that one invoker can run a
+     * sequence of calls without allocating a new one per call.
+     */
+    public ServiceInvoker reset(String serviceName, String jsonParameters) {
+        this.serviceName=serviceName;
+        this.jsonParameters=jsonParameters;
+        this.parameters=null;
+        this.binary=false;
+        return clearState();
+    }
+
+    public ServiceInvoker reset(String serviceName, Map<String, Object> parameters) {
+        this.serviceName=serviceName;
+        this.jsonParameters=null;
+        this.parameters=parameters;
+        this.binary=true;
+        return clearState();
+    }
+
+    private ServiceInvoker clearState() {
+        this.errorMessages.clear();
+        this.result=null;
+        this.jsonResult=null;
+        this.binaryResult=null;
+        return this;
+    }
+
     public ErrCode invoke() {
-        ModelService model=null;
         Map<String, Object> serviceContext=null;
         // prepare the context
         try {
-            serviceContext = ValueHelper.jsonToMap(this.jsonParameters);
+            Map<String, Object> parameters = this.parameters!=null ? this.parameters
+                    : ValueHelper.jsonToMap(this.jsonParameters);
             if(this.serviceName==null){
-                this.serviceName=(String)serviceContext.get("_service");
+                this.serviceName=(String)parameters.get("_service");
             }
 
-            model=dispatcher.getDispatchContext().getModelService(this.serviceName);
+            // only the IN parameters are copied, so the "_" options never reach the service
+            ServicePlan plan = ServicePlan.get(dispatcher.getDispatchContext(), this.serviceName);
+            serviceContext = plan.prepare(parameters, errorMessages, timeZone, locale);
 
-            GenericValue user = withUserLogin(serviceContext);
+            GenericValue user = userLogin!=null ? userLogin : withUserLogin(parameters);
             if(user!=null) {
                 serviceContext.put("userLogin", user);
             }
-
-            serviceContext.keySet().removeIf(o -> o.startsWith("_"));
-            serviceContext = model.makeValid(serviceContext, ModelService.IN_PARAM, true, errorMessages, timeZone, locale);
             if (errorMessages.size() > 0) {
                 // uh-oh, had some problems...
                 return ErrCode.ERR_VALIDATE;
@@ -129,9 +197,16 @@ public class ServiceInvoker {
 
         try {
             result.put("_result", ErrCode.Success.getID());
-            this.jsonResult=ValueHelper.mapToJson(result);
+            if(!encodeResult){
+                return ErrCode.Success;
+            }
+            if(binary){
+                this.binaryResult=BinaryValueCodec.encode(result);
+            }else {
+                this.jsonResult = ValueHelper.mapToJson(result);
+            }
         }catch (Exception e){
-            Debug.logError(e, "Service response cannot jsonify", module);
+            Debug.logError(e, "Service response cannot be encoded", module);
             // throw new EventHandlerException("Service response cannot jsonify", e);
             return ErrCode.ERR_JSONIFY;
         }
@@ -139,7 +214,7 @@ public class ServiceInvoker {
         return ErrCode.Success;
     }
 
-    private GenericValue withUserLogin(Map<String, Object> serviceContext) throws GenericEntityException, GeneralSecurityException {
+    public GenericValue withUserLogin(Map<String, Object> serviceContext) throws GenericEntityException, GeneralSecurityException {
         GenericValue user = null;
         String token=(String)serviceContext.get("_token");
         if(token!=null) {
@@ -159,9 +234,22 @@ public class ServiceInvoker {
         return user;
     }
 
+    /** Encode a response map as BinaryValueCodec bytes or as UTF-8 JSON */
+    public static byte[] encode(boolean binary, Map<String, Object> response) throws IOException {
+        if (binary) {
+            return BinaryValueCodec.encode(response);
+        }
+        try {
+            return ValueHelper.mapToJson(response).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
     // ErrCode.ERR_VALIDATE.getID() returns 1
     public enum ErrCode {
-        Success(0), ERR_VALIDATE(1), ERR_INVOKE(2), ERR_JSONIFY(3), ERR_OTHER(4);
+        Success(0), ERR_VALIDATE(1), ERR_INVOKE(2), ERR_JSONIFY(3), ERR_OTHER(4),
+        ERR_OVERLOADED(5), ERR_CANCELLED(6);
 
         private int id;
 
@@ -0,0 +1,112 @@
+package com.sagas.generic;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.ObjectType;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.ModelParam;
+import org.apache.ofbiz.service.ModelService;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-compiled input handling of a service: the IN parameters with their resolved
+ * java types.
+ *
+ * Preparing a context only visits the IN parameters, values that already have the
+ * parameter type are taken as is, others are converted like ModelService.makeValid
+ * does. Default values and the required parameters are left to the service engine,
+ * which applies the defaults before validating, so a missing parameter is still a
+ * ServiceValidationException of the invocation. Plans are cached by service name and rebuilt when the dispatch context
+ * returns another ModelService instance, that is after the definitions were reloaded.
+ */
+public class ServicePlan {
+    private static final Map<String, ServicePlan> plans = new ConcurrentHashMap<>();
+
+    private final ModelService model;
+    private final Param[] params;
+
+    private static class Param {
+        final String name;
+        final String type;
+        final Class<?> typeClass;
+
+        Param(ModelParam param) {
+            this.name = param.getName();
+            this.type = param.type;
+            this.typeClass = resolve(param.type);
+        }
+
+        private static Class<?> resolve(String type) {
+            if (type == null) {
+                return null;
+            }
+            try {
+                return ObjectType.loadClass(type);
+            } catch (ClassNotFoundException e) {
+                // converted on every call
+                return null;
+            }
+        }
+    }
+
+    private ServicePlan(ModelService model) {
+        this.model = model;
+        List<Param> inParams = Lists.newArrayList();
+        for (ModelParam param : model.getInModelParamList()) {
+            inParams.add(new Param(param));
+        }
+        this.params = inParams.toArray(new Param[0]);
+    }
+
+    public static ServicePlan get(DispatchContext dctx, String serviceName) throws GenericServiceException {
+        ModelService model = dctx.getModelService(serviceName);
+        ServicePlan plan = plans.get(serviceName);
+        if (plan == null || plan.model != model) {
+            plan = new ServicePlan(model);
+            plans.put(serviceName, plan);
+        }
+        return plan;
+    }
+
+    public static void clear() {
+        plans.clear();
+    }
+
+    public ModelService getModel() {
+        return model;
+    }
+
+    /**
+     * Builds the service context from the raw parameters: only IN parameters are
+     * copied, values are converted to the parameter types, and conversion failures
+     * are reported to errorMessages.
+     */
+    public Map<String, Object> prepare(Map<String, Object> raw, List<Object> errorMessages,
+                                       TimeZone timeZone, Locale locale) {
+        Map<String, Object> context = Maps.newHashMapWithExpectedSize(Math.min(raw.size(), params.length));
+        for (Param param : params) {
+            Object value = raw.get(param.name);
+            if (value == null) {
+                continue;
+            }
+            if (param.type == null || (param.typeClass != null && param.typeClass.isInstance(value))) {
+                context.put(param.name, value);
+                continue;
+            }
+            try {
+                context.put(param.name, ObjectType.simpleTypeConvert(value, param.type, null, timeZone, locale, true));
+            } catch (GeneralException e) {
+                errorMessages.add("Type conversion of field [" + param.name + "] to type [" + param.type
+                        + "] failed for value \"" + value + "\": " + e.toString());
+            }
+        }
+        return context;
+    }
+}
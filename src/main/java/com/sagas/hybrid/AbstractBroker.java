@@ -1,64 +1,366 @@
 package com.sagas.hybrid;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.Consumer;
-import com.sagas.actors.bus.RabbitConnector;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.service.LocalDispatcher;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.concurrent.TimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Consumes a request queue with several channels and processes the requests on a
+ * bounded worker pool, replying to the reply-to queue of each request.
+ *
+ * The concurrency is read from sagas.properties, "broker.<queue name>.<setting>"
+ * overrides "broker.<setting>":
+ * consumers (channels, one consumer each), prefetch (unacked requests per channel),
+ * workers (pool size, 0 for the number of processors) and virtualThreads (run each
+ * request on a virtual thread when the JVM supports it). Requests of a channel are
+ * acked in delivery order, see DeliveryAckTracker.
+ *
+ * A request past its deadline (see deadlineOf) is acked without being processed. A
+ * message with the "x-cancel" header cancels the request with that correlation id,
+ * a queued request is then skipped, a running one sees it through RequestContext.
+ * When maxInFlight or maxLatencyMs is exceeded new requests get the rejectReply of
+ * the broker instead of being processed, see AdmissionController.
+ *
+ * Requests are consumed and replies published on the recovering connections of
+ * BrokerConnectionManager; the queue is only purged on start when purgeOnStart is set.
+ */
 public abstract class AbstractBroker {
     private static final String module = AbstractBroker.class.getName();
+    private static final String resource = "sagas";
+    public static final String DEADLINE_HEADER = "x-deadline";
+    public static final String CANCEL_HEADER = "x-cancel";
 
     protected LocalDispatcher dispatcher;
     protected GenericDelegator delegator;
     protected Connection connection = null;
-    protected Channel channel;
-    protected RabbitConnector connector;
+    protected BrokerConnectionManager connections;
+
+    private final List<Channel> channels = Lists.newArrayList();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // requests received and not completed, by correlation id, for cancellation
+    private final Map<String, RequestContext> requests = new ConcurrentHashMap<>();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private AdmissionController admission;
+    private ExecutorService workers;
 
     @Inject
-    public AbstractBroker(LocalDispatcher dispatcher, GenericDelegator delegator, RabbitConnector connector) {
+    public AbstractBroker(LocalDispatcher dispatcher, GenericDelegator delegator, BrokerConnectionManager connections) {
         this.dispatcher=dispatcher;
         this.delegator=delegator;
-        this.connector=connector;
+        this.connections=connections;
+    }
+
+    /**
+     * Starts consuming once the subclass is completely injected, so no request
+     * is processed by a half constructed broker.
+     */
+    @Inject
+    void startConsumers() {
+        String queueName= getQueueName();
+        int consumers = getSetting("consumers", 2);
+        int prefetch = getSetting("prefetch", 16);
+        this.workers = createWorkers(consumers * prefetch);
+        this.admission = new AdmissionController(getSetting("maxInFlight", 0), getSetting("maxLatencyMs", 0));
 
         try {
-            connection = connector.getConnection();
-            channel = connection.createChannel();
+            connection = connections.getConsumeConnection();
+            for (int i = 0; i < consumers; i++) {
+                Channel channel = connection.createChannel();
+                if (i == 0) {
+                    channel.queueDeclare(queueName, false, false, false, null);
+                    if ("true".equalsIgnoreCase(getSetting("purgeOnStart", "true").trim())) {
+                        channel.queuePurge(queueName);
+                    }
+                }
+                channel.basicQos(prefetch);
+                channel.basicConsume(queueName, false, new BrokerConsumer(channel));
+                channels.add(channel);
+            }
+            System.out.println(" [✔] Awaiting "+getQueueName()+" requests, "+consumers+" consumers");
+        } catch (IOException e) {
+            Debug.logFatal(e, e.getMessage(), module);
+        }
+    }
 
-            String queueName= getQueueName();
+    private String getSetting(String name, String defaultValue) {
+        String value = UtilProperties.getPropertyValue(resource, "broker." + name, defaultValue);
+        return UtilProperties.getPropertyValue(resource, "broker." + getQueueName() + "." + name, value);
+    }
 
-            channel.queueDeclare(queueName, false, false, false, null);
-            channel.queuePurge(queueName);
+    private int getSetting(String name, int defaultValue) {
+        return Integer.parseInt(getSetting(name, String.valueOf(defaultValue)).trim());
+    }
 
-            channel.basicQos(1);
+    private ExecutorService createWorkers(int maxInFlight) {
+        String prefix = "sagas-" + getQueueName() + "-";
+        if ("true".equalsIgnoreCase(getSetting("virtualThreads", "false").trim())) {
+            try {
+                // available from java 21, the prefetch window bounds the requests in flight
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Debug.logWarning("Virtual threads are not available, using a thread pool", module);
+            }
+        }
+        int size = getSetting("workers", 0);
+        if (size <= 0) {
+            size = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger count = new AtomicInteger();
+        // the queue never fills up, at most consumers * prefetch requests are unacked
+        return new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxInFlight),
+                r -> {
+                    Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
 
-            System.out.println(" [✔] Awaiting "+getQueueName()+" requests");
+    private class BrokerConsumer extends DefaultConsumer {
+        private final DeliveryAckTracker acks;
 
-            Consumer consumer = getConsumer();
+        BrokerConsumer(Channel channel) {
+            super(channel);
+            this.acks = new DeliveryAckTracker(tag -> {
+                try {
+                    synchronized (channel) {
+                        channel.basicAck(tag, true);
+                    }
+                } catch (IOException e) {
+                    Debug.logError(e, "Cannot ack " + getQueueName() + " requests up to " + tag, module);
+                }
+            });
+        }
 
-            channel.basicConsume(queueName, false, consumer);
-            // Wait and be prepared to consume the message from RPC client.
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            long tag = envelope.getDeliveryTag();
+            long received = System.nanoTime();
+            acks.received(tag);
 
-        } catch (IOException e) {
-            Debug.logFatal(e, e.getMessage(), module);
-            e.printStackTrace();
+            String cancelTarget = header(properties, CANCEL_HEADER);
+            if (cancelTarget != null) {
+                RequestContext target = requests.get(cancelTarget);
+                if (target != null) {
+                    target.cancel();
+                    cancelled.increment();
+                }
+                acks.completed(tag);
+                return;
+            }
+
+            String rejection = admission.tryAdmit(inFlight.get());
+            if (rejection != null) {
+                rejected.increment();
+                try {
+                    reply(properties, rejectReply(properties, rejection));
+                } finally {
+                    acks.completed(tag);
+                }
+                return;
+            }
+
+            RequestContext context = new RequestContext(properties.getCorrelationId(), deadlineOf(properties));
+            if (context.getCorrelationId() != null) {
+                requests.put(context.getCorrelationId(), context);
+            }
+            inFlight.incrementAndGet();
+            try {
+                workers.execute(() -> handle(tag, properties, body, context, received));
+            } catch (RejectedExecutionException e) {
+                // shutting down, another consumer will get the request
+                inFlight.decrementAndGet();
+                forget(context);
+                synchronized (getChannel()) {
+                    getChannel().basicNack(tag, false, true);
+                }
+                acks.discard(tag);
+            }
+        }
+
+        private void handle(long tag, AMQP.BasicProperties properties, byte[] body, RequestContext context, long received) {
+            try {
+                if (context.isCancelled()) {
+                    // the caller gave up already, nobody waits for the reply
+                    if (context.isExpired()) {
+                        expired.increment();
+                    }
+                    return;
+                }
+                RequestContext.enter(context);
+                reply(properties, process(properties, body));
+            } catch (Exception e) {
+                Debug.logError(e, e.getMessage(), module);
+            } finally {
+                RequestContext.exit();
+                forget(context);
+                admission.completed(System.nanoTime() - received);
+                inFlight.decrementAndGet();
+                acks.completed(tag);
+                Debug.logImportant("invoke end.", module);
+            }
+        }
+
+        private void reply(AMQP.BasicProperties properties, byte[] response) throws IOException {
+            String replyTo = properties.getReplyTo();
+            if (response != null && replyTo != null) {
+                AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                        .Builder()
+                        .correlationId(properties.getCorrelationId())
+                        .contentType(getReplyContentType(properties))
+                        .build();
+                connections.publish("", replyTo, replyProps, response);
+            }
         }
     }
 
+    private void forget(RequestContext context) {
+        if (context.getCorrelationId() != null) {
+            requests.remove(context.getCorrelationId(), context);
+        }
+    }
+
+    private static String header(AMQP.BasicProperties properties, String name) {
+        Map<String, Object> headers = properties.getHeaders();
+        Object value = headers != null ? headers.get(name) : null;
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * The deadline of a request is the "x-deadline" header (epoch millis), or else
+     * the message expiration counted from the message timestamp, or from now when
+     * the message has no timestamp.
+     */
+    static long deadlineOf(AMQP.BasicProperties properties) {
+        try {
+            String deadline = header(properties, DEADLINE_HEADER);
+            if (deadline != null) {
+                return Long.parseLong(deadline.trim());
+            }
+            if (properties.getExpiration() != null) {
+                long sent = properties.getTimestamp() != null ? properties.getTimestamp().getTime()
+                        : System.currentTimeMillis();
+                return sent + Long.parseLong(properties.getExpiration().trim());
+            }
+        } catch (NumberFormatException e) {
+            Debug.logWarning("Ignore malformed request deadline: " + e.getMessage(), module);
+        }
+        return Long.MAX_VALUE;
+    }
+
     protected abstract String getQueueName();
-    protected abstract Consumer getConsumer();
+
+    /**
+     * Handles one request on a worker thread, returns the reply body,
+     * or null when there is nothing to reply.
+     */
+    protected abstract byte[] process(AMQP.BasicProperties properties, byte[] body) throws Exception;
+
+    /**
+     * Publish a message to a reply queue at any time, e.g. after the request has
+     * been acked. Messages published to one reply queue keep their order.
+     */
+    protected void publishReply(String replyTo, String correlationId, String contentType, byte[] body) throws IOException {
+        if (replyTo == null) {
+            return;
+        }
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(correlationId)
+                .contentType(contentType)
+                .build();
+        connections.publish("", replyTo, replyProps, body);
+    }
+
+    /**
+     * Fast error reply for a request rejected by the admission controller,
+     * null rejects it without a reply.
+     */
+    protected byte[] rejectReply(AMQP.BasicProperties properties, String reason) throws IOException {
+        return null;
+    }
+
+    /** Content type of the reply to the request, null leaves it unset */
+    protected String getReplyContentType(AMQP.BasicProperties properties) {
+        return null;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getCancelledCount() {
+        return cancelled.sum();
+    }
+
+    /**
+     * Queue depth, consumers and the request counters of this broker, the depth is
+     * the number of requests waiting in the queue (not counting the unacked ones).
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("queue", getQueueName());
+        if (!channels.isEmpty()) {
+            Channel channel = channels.get(0);
+            try {
+                stats.put("depth", channel.messageCount(getQueueName()));
+                stats.put("consumers", channel.consumerCount(getQueueName()));
+            } catch (IOException e) {
+                Debug.logWarning("Cannot read depth of " + getQueueName() + ": " + e.getMessage(), module);
+            }
+        }
+        stats.put("inFlight", inFlight.get());
+        stats.put("expired", expired.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("cancelled", cancelled.sum());
+        return stats;
+    }
+
     public void stop() {
-        if (connection != null) {
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the connection is shared with the other brokers
+        for (Channel channel : channels) {
             try {
-                connection.close();
-            } catch (IOException _ignore) {
+                channel.close();
+            } catch (Exception _ignore) {
             }
         }
     }
@@ -0,0 +1,49 @@
+package com.sagas.hybrid;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load shedding for a broker: a request is rejected right away when too many
+ * requests are in flight, or when the recent latency (receive to completion,
+ * exponentially weighted) is above the limit. Latency samples older than one
+ * second are ignored, so a broker that sheds everything recovers by itself.
+ * A limit of 0 disables that check.
+ */
+public class AdmissionController {
+    private static final long SAMPLE_TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double WEIGHT = 0.2;
+
+    private final int maxInFlight;
+    private final long maxLatencyNanos;
+    private double latencyNanos;
+    private long lastSampleNanos;
+
+    public AdmissionController(int maxInFlight, long maxLatencyMillis) {
+        this.maxInFlight = maxInFlight;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+    }
+
+    /** Returns null to admit the request, or the reason it is rejected */
+    public String tryAdmit(int inFlight) {
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            return "Too many requests in flight: " + inFlight;
+        }
+        if (maxLatencyNanos > 0) {
+            synchronized (this) {
+                if (System.nanoTime() - lastSampleNanos < SAMPLE_TTL_NANOS && latencyNanos > maxLatencyNanos) {
+                    return "Latency is over " + TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos) + " ms";
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized void completed(long nanos) {
+        latencyNanos = lastSampleNanos == 0 ? nanos : latencyNanos + WEIGHT * (nanos - latencyNanos);
+        lastSampleNanos = System.nanoTime();
+    }
+
+    public synchronized long getLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((long) latencyNanos);
+    }
+}
@@ -0,0 +1,59 @@
+package com.sagas.hybrid;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Acknowledges the deliveries of one channel in the order they arrived, although
+ * they complete out of order on the worker pool: a completed delivery is only acked
+ * once every earlier delivery has completed too, with a single multiple-ack up to
+ * the highest contiguous delivery tag. A multiple-ack never settles a delivery that
+ * was nacked before, so discarded deliveries may lie inside the acked range.
+ */
+public class DeliveryAckTracker {
+    private final TreeMap<Long, Boolean> pending = new TreeMap<>();
+    private final LongConsumer ackUpTo;
+
+    public DeliveryAckTracker(LongConsumer ackUpTo) {
+        this.ackUpTo = ackUpTo;
+    }
+
+    /** Called on the consumer thread, in delivery order */
+    public synchronized void received(long deliveryTag) {
+        pending.put(deliveryTag, Boolean.FALSE);
+    }
+
+    public synchronized void completed(long deliveryTag) {
+        pending.put(deliveryTag, Boolean.TRUE);
+        ackCompleted();
+    }
+
+    /**
+     * Forget a delivery that was settled some other way (nacked or rejected), the
+     * completed deliveries it was holding back are acked.
+     */
+    public synchronized void discard(long deliveryTag) {
+        pending.remove(deliveryTag);
+        ackCompleted();
+    }
+
+    private void ackCompleted() {
+        long last = -1;
+        while (!pending.isEmpty()) {
+            Map.Entry<Long, Boolean> first = pending.firstEntry();
+            if (!first.getValue()) {
+                break;
+            }
+            last = first.getKey();
+            pending.pollFirstEntry();
+        }
+        if (last >= 0) {
+            ackUpTo.accept(last);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -1,16 +1,13 @@
 package com.sagas.hybrid;
 
 import com.beust.jcommander.internal.Maps;
+import com.google.common.base.Splitter;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.Consumer;
-import com.rabbitmq.client.DefaultConsumer;
-import com.rabbitmq.client.Envelope;
 import com.sagas.actions.ActionInvoker;
 import com.sagas.actions.ActionRequest;
 import com.sagas.actions.ActionResponse;
 import com.sagas.actions.ActionsManager;
-import com.sagas.actors.bus.RabbitConnector;
 import com.sagas.generic.ServiceInvoker;
 import com.sagas.generic.ValueHelper;
 import com.sagas.meta.FormManager;
@@ -25,6 +22,7 @@ import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 @Singleton
@@ -40,9 +38,9 @@ public class MetaBroker extends AbstractBroker{
 
     @Inject
     public MetaBroker(LocalDispatcher dispatcher, GenericDelegator delegator,
-                      RabbitConnector connector,
+                      BrokerConnectionManager connections,
                       MetaManager metaManager) {
-        super(dispatcher, delegator, connector);
+        super(dispatcher, delegator, connections);
         this.metaManager=metaManager;
     }
 
@@ -50,49 +48,63 @@ public class MetaBroker extends AbstractBroker{
         return QUEUE_NAME;
     }
 
-    protected Consumer getConsumer(){
-        return new DefaultConsumer(channel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                AMQP.BasicProperties replyProps = new AMQP.BasicProperties
-                        .Builder()
-                        .correlationId(properties.getCorrelationId())
-                        .build();
-                String replyTo=properties.getReplyTo();
+    protected byte[] process(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        MetaQuery query=MetaQuery.parseFrom(body);
 
-                MetaQuery query=MetaQuery.parseFrom(body);
-
-                MetaPayload.Builder payload = execute(query);
+        MetaPayload.Builder payload = execute(query);
+        return payload.build().toByteArray();
+    }
 
-                byte[] response=payload.build().toByteArray();
-                channel.basicPublish("", replyTo, replyProps, response);
-                channel.basicAck(envelope.getDeliveryTag(), false);
-                Debug.logImportant("invoke end.", module);
-            }
-        };
+    @Override
+    protected byte[] rejectReply(AMQP.BasicProperties properties, String reason) {
+        ErrorInfo errorInfo = ErrorInfo.newBuilder()
+                .setErrorType(ErrorType.RETRIEVE_INFO_FAIL)
+                .setMessage("Overloaded: " + reason)
+                .build();
+        return MetaPayload.newBuilder().setType(MetaPayloadType.ERROR_INFO)
+                .setBody(errorInfo.toByteString()).build().toByteArray();
     }
 
     public MetaPayload.Builder execute(MetaQuery query) {
         MetaPayload.Builder payload=MetaPayload.newBuilder();
 
         if(query.getInfoType().equals("entity")){
-            MetaEntity entity=metaManager.getMetaEntity(query.getUri());
-            payload.setType(MetaPayloadType.META_ENTITY)
-                    .setBody(entity.toByteString());
+            try {
+                payload.setType(MetaPayloadType.META_ENTITY)
+                        .setBody(metaManager.getMetaEntityBytes(query.getUri()));
+            }catch(Exception e){
+                wrapException(payload, e);
+            }
 
         }else if(query.getInfoType().equals("service")) {
             try {
-                MetaService service = metaManager.getMetaService(query.getUri());
                 payload.setType(MetaPayloadType.META_SERVICE)
-                        .setBody(service.toByteString());
+                        .setBody(metaManager.getMetaServiceBytes(query.getUri()));
+            }catch(Exception e){
+                wrapException(payload, e);
+            }
+        }else if(query.getInfoType().equals("entities") || query.getInfoType().equals("package")) {
+            // several entities in one body, see MetaManager.getMetaEntities
+            try {
+                List<String> names = query.getInfoType().equals("package")
+                        ? metaManager.getPackageEntityNames(query.getUri())
+                        : splitNames(query.getUri());
+                payload.setType(MetaPayloadType.META_ENTITY)
+                        .setBody(metaManager.getMetaEntities(names));
+            }catch(Exception e){
+                wrapException(payload, e);
+            }
+        }else if(query.getInfoType().equals("services")) {
+            try {
+                payload.setType(MetaPayloadType.META_SERVICE)
+                        .setBody(metaManager.getMetaServices(splitNames(query.getUri())));
             }catch(Exception e){
                 wrapException(payload, e);
             }
         }else if(query.getInfoType().equals("form")) {
             try {
-                MetaForm form=formManager.get().getMetaForm(query.getUri());
                 payload.setType(MetaPayloadType.META_FORM)
-                        .setBody(form.toByteString());
+                        .setBody(formManager.get().getMetaFormBytes(query.getUri()));
             }catch(Exception e){
                 wrapException(payload, e);
             }
@@ -119,6 +131,10 @@ public class MetaBroker extends AbstractBroker{
         return payload;
     }
 
+    private static List<String> splitNames(String uri) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(uri);
+    }
+
     public static void checkResponse(MetaPayload.Builder payload, ActionResponse resp) throws InvalidProtocolBufferException {
         if(resp.getCode()==0) {
             payload.setType(MetaPayloadType.ACTION_RESULT);
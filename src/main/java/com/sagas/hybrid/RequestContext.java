@@ -0,0 +1,63 @@
+package com.sagas.hybrid;
+
+/**
+ * Deadline and cancellation state of the broker request handled by the current
+ * thread. Long running code can check {@link #isCancelled()} between steps and
+ * give up early, code outside a broker request sees a context that never expires.
+ */
+public class RequestContext {
+    private static final RequestContext NONE = new RequestContext(null, Long.MAX_VALUE);
+    private static final ThreadLocal<RequestContext> current = new ThreadLocal<>();
+
+    private final String correlationId;
+    private final long deadline;
+    private volatile boolean cancelled;
+
+    public RequestContext(String correlationId, long deadline) {
+        this.correlationId = correlationId;
+        this.deadline = deadline;
+    }
+
+    public static RequestContext current() {
+        RequestContext context = current.get();
+        return context != null ? context : NONE;
+    }
+
+    static void enter(RequestContext context) {
+        current.set(context);
+    }
+
+    static void exit() {
+        current.remove();
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /** Epoch millis after which the caller no longer waits, Long.MAX_VALUE for none */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public boolean hasDeadline() {
+        return deadline != Long.MAX_VALUE;
+    }
+
+    public long remainingMillis() {
+        return hasDeadline() ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return hasDeadline() && System.currentTimeMillis() > deadline;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /** Cancelled by the caller, or past the deadline */
+    public boolean isCancelled() {
+        return cancelled || isExpired();
+    }
+}
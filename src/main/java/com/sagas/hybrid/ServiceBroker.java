@@ -2,7 +2,9 @@ package com.sagas.hybrid;
 
 import com.beust.jcommander.internal.Maps;
 import com.rabbitmq.client.*;
-import com.sagas.actors.bus.RabbitConnector;
+import com.sagas.generic.AsyncServiceRunner;
+import com.sagas.generic.BinaryValueCodec;
+import com.sagas.generic.ServiceBatch;
 import com.sagas.generic.ServiceInvoker;
 import com.sagas.generic.ValueHelper;
 import com.sagas.security.SecurityManager;
@@ -11,10 +13,12 @@ import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.service.LocalDispatcher;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
 @Singleton
@@ -23,11 +27,15 @@ public class ServiceBroker extends AbstractBroker{
     private static final String RPC_QUEUE_NAME = "rpc_queue";
 
     private SecurityManager securityManager;
+    @Inject
+    private Provider<ServiceBatch> serviceBatch;
+    @Inject
+    private Provider<AsyncServiceRunner> asyncRunner;
 
     @Inject
     public ServiceBroker(LocalDispatcher dispatcher, GenericDelegator delegator, SecurityManager securityManager,
-                         RabbitConnector connector) {
-        super(dispatcher, delegator, connector);
+                         BrokerConnectionManager connections) {
+        super(dispatcher, delegator, connections);
         this.securityManager=securityManager;
     }
 
@@ -35,46 +43,95 @@ public class ServiceBroker extends AbstractBroker{
         return RPC_QUEUE_NAME;
     }
 
-    protected Consumer getConsumer(){
-        return new DefaultConsumer(channel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                AMQP.BasicProperties replyProps = new AMQP.BasicProperties
-                        .Builder()
-                        .correlationId(properties.getCorrelationId())
-                        .build();
-                String replyTo=properties.getReplyTo();
+    private static boolean isBinary(AMQP.BasicProperties properties) {
+        return BinaryValueCodec.CONTENT_TYPE.equals(properties.getContentType());
+    }
 
-                String response = "";
-                try {
+    /**
+     * Requests with the BinaryValueCodec content type are decoded and answered in
+     * that encoding, everything else is handled as JSON. A request carrying a
+     * "_batch" list is run as a service batch, see ServiceBatch, a request with
+     * "_async" is run in the background, see AsyncServiceRunner.
+     */
+    protected byte[] process(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        boolean binary = isBinary(properties);
+        try {
+            Map<String, Object> request;
+            try {
+                if (binary) {
+                    request = BinaryValueCodec.decodeMap(body);
+                    Debug.logImportant(" [.] invoke(binary, " + body.length + " bytes)", module);
+                } else {
                     String message = new String(body, StandardCharsets.UTF_8);
                     // Map values=gson.fromJson(message, Map.class);
-                    ServiceInvoker invoker = new ServiceInvoker(dispatcher, delegator, securityManager,null, message);
-
+                    request = ValueHelper.jsonToMap(message);
                     Debug.logImportant(" [.] invoke(" + message + ")", module);
-                    // response += fib(n);
-                    ServiceInvoker.ErrCode result = invoker.invoke();
-                    if(result!=ServiceInvoker.ErrCode.Success){
-                        Map errResp=Maps.newHashMap("_result", result.getID(), "messages", invoker.getErrorMessages());
-                        response=ValueHelper.mapToJson(errResp);
-                    }else {
-                        response = invoker.getJsonResult();
-                    }
-                } catch (RuntimeException e) {
-                    System.out.println(" [.] " + e.toString());
-                    Debug.logError(e, e.getMessage(), module);
-                    response=ValueHelper.toJsonMap("_result", ServiceInvoker.ErrCode.ERR_OTHER.getID(),
-                            "message", e.getMessage());
-                } catch (Exception e) {
-                    Debug.logError(e, e.getMessage(), module);
-                    response=ValueHelper.toJsonMap("_result", ServiceInvoker.ErrCode.ERR_OTHER.getID(),
-                            "message", e.getMessage());
-                } finally {
-                    channel.basicPublish("", replyTo, replyProps, response.getBytes("UTF-8"));
-                    channel.basicAck(envelope.getDeliveryTag(), false);
-                    Debug.logImportant("invoke end.", module);
                 }
+            } catch (Exception e) {
+                Debug.logError(e, "Service request cannot be decoded", module);
+                return encode(binary, Maps.newHashMap("_result", ServiceInvoker.ErrCode.ERR_VALIDATE.getID(),
+                        "message", e.getMessage()));
+            }
+
+            if (ServiceBatch.isBatch(request)) {
+                return encode(binary, serviceBatch.get().run(request));
+            }
+            if (AsyncServiceRunner.isAsync(request)) {
+                submitAsync(properties, request, binary);
+                return null;
+            }
+            ServiceInvoker invoker = new ServiceInvoker(dispatcher, delegator, securityManager, null, request);
+            invoker.setBinary(binary);
+
+            // response += fib(n);
+            ServiceInvoker.ErrCode result = invoker.invoke();
+            if(result!=ServiceInvoker.ErrCode.Success){
+                Map errResp=Maps.newHashMap("_result", result.getID(), "messages", invoker.getErrorMessages());
+                return encode(binary, errResp);
             }
-        };
+            return binary ? invoker.getBinaryResult() : invoker.getJsonResult().getBytes("UTF-8");
+        } catch (RuntimeException e) {
+            System.out.println(" [.] " + e.toString());
+            Debug.logError(e, e.getMessage(), module);
+            return encode(binary, Maps.newHashMap("_result", ServiceInvoker.ErrCode.ERR_OTHER.getID(),
+                    "message", e.getMessage()));
+        } catch (Exception e) {
+            Debug.logError(e, e.getMessage(), module);
+            return encode(binary, Maps.newHashMap("_result", ServiceInvoker.ErrCode.ERR_OTHER.getID(),
+                    "message", e.getMessage()));
+        }
+    }
+
+    /**
+     * All messages of the job are published through the reply channel, so the
+     * caller receives them in order, starting with "accepted".
+     */
+    private void submitAsync(AMQP.BasicProperties properties, Map<String, Object> request, boolean binary) {
+        String correlationId = properties.getCorrelationId();
+        String jobId = correlationId != null ? correlationId : UUID.randomUUID().toString();
+        String replyTo = properties.getReplyTo();
+        String contentType = getReplyContentType(properties);
+        asyncRunner.get().submit(jobId, request, binary, message -> {
+            try {
+                publishReply(replyTo, correlationId, contentType, encode(binary, message));
+            } catch (IOException e) {
+                Debug.logError(e, "Cannot publish the state of async job " + jobId, module);
+            }
+        });
+    }
+
+    private static byte[] encode(boolean binary, Map response) throws IOException {
+        return ServiceInvoker.encode(binary, response);
+    }
+
+    @Override
+    protected byte[] rejectReply(AMQP.BasicProperties properties, String reason) throws IOException {
+        return encode(isBinary(properties), Maps.newHashMap("_result", ServiceInvoker.ErrCode.ERR_OVERLOADED.getID(),
+                "message", reason));
+    }
+
+    @Override
+    protected String getReplyContentType(AMQP.BasicProperties properties) {
+        return isBinary(properties) ? BinaryValueCodec.CONTENT_TYPE : "application/json";
     }
-}
\ No newline at end of file
+}
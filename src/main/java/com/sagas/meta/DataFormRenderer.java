@@ -36,23 +36,78 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 
 /**
  * Widget Library - FO Form Renderer implementation
  *
+ * Emits a MetaFieldData record per rendered field. With the transcript enabled
+ * it also writes a readable text of the form to the writer, without it nothing
+ * is formatted and the writer can be NULL_WRITER.
  */
 public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRenderer {
 
     public static final String module = DataFormRenderer.class.getName();
 
+    /** Writer for data-only renders, discards everything */
+    public static final Appendable NULL_WRITER = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            return this;
+        }
+    };
+
     HttpServletRequest request;
     HttpServletResponse response;
-    MetaSingleFormData.Builder formData;
+    Consumer<MetaFieldData> fieldSink;
+    boolean transcript = true;
+    // resolved drop-down options, null resolves them on every render
+    OptionCache optionCache;
 
     public DataFormRenderer(MetaSingleFormData.Builder formData) {
+        this(formData::addFields, true);
+    }
+
+    /**
+     * Hand each field record to the sink as soon as it is rendered, the
+     * text transcript is only written when enabled.
+     */
+    public DataFormRenderer(Consumer<MetaFieldData> fieldSink, boolean transcript) {
         this.widgetCommentsEnabled=false;
-        this.formData=formData;
+        this.fieldSink=fieldSink;
+        this.transcript=transcript;
+    }
+
+    public DataFormRenderer setOptionCache(OptionCache optionCache) {
+        this.optionCache = optionCache;
+        return this;
+    }
+
+    private void emit(MetaFieldData fieldData) {
+        fieldSink.accept(fieldData);
+    }
+
+    private void fieldLine(Appendable writer, String fieldType, String name) throws IOException {
+        if (transcript) {
+            writer.append("\n+").append(fieldType).append(' ').append(name);
+        }
+    }
+
+    private void optionLine(Appendable writer, String key, String description) throws IOException {
+        if (transcript) {
+            writer.append("\n\t- option ").append(key).append(" / ").append(description);
+        }
     }
 
     public void renderBeginningBoundaryComment(Appendable writer, String widgetType, ModelWidget modelWidget) throws IOException {
@@ -66,13 +121,20 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
     }
 
     private void makeBlockString(Appendable writer, String widgetStyle, String text) throws IOException {
+        if (!transcript) {
+            return;
+        }
         writer.append(" ☌");
         writer.append(UtilFormatOut.encodeXmlValue(text));
     }
 
     public void renderDisplayField(Appendable writer, Map<String, Object> context, DisplayField displayField) throws IOException {
         ModelFormField modelFormField = displayField.getModelFormField();
-        writer.append(String.format("\n+display-field %s", modelFormField.getName()));
+        if (!transcript) {
+            // nothing but text for display fields
+            return;
+        }
+        fieldLine(writer, "display-field", modelFormField.getName());
 
         this.makeBlockString(writer, modelFormField.getWidgetStyle(),
                 displayField.getDescription(context));
@@ -81,13 +143,13 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderHyperlinkField(Appendable writer, Map<String, Object> context, HyperlinkField hyperlinkField) throws IOException {
         ModelFormField modelFormField = hyperlinkField.getModelFormField();
-        writer.append(String.format("\n+hyperlink-field %s", modelFormField.getName()));
+        fieldLine(writer, "hyperlink-field", modelFormField.getName());
 
         String val=hyperlinkField.getDescription(context);
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("hyperlink")
@@ -100,14 +162,14 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderTextField(Appendable writer, Map<String, Object> context, TextField textField) throws IOException {
         ModelFormField modelFormField = textField.getModelFormField();
-        writer.append(String.format("\n+text-field %s", modelFormField.getName()));
+        fieldLine(writer, "text-field", modelFormField.getName());
 
         String val=modelFormField.getEntry(context, textField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(),
                 val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("text")
@@ -116,14 +178,14 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderTextareaField(Appendable writer, Map<String, Object> context, TextareaField textareaField) throws IOException {
         ModelFormField modelFormField = textareaField.getModelFormField();
-        writer.append(String.format("\n+textarea-field %s", modelFormField.getName()));
+        fieldLine(writer, "textarea-field", modelFormField.getName());
 
         String val=modelFormField.getEntry(context, textareaField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(),
                 val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("textarea")
@@ -132,13 +194,13 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderDateTimeField(Appendable writer, Map<String, Object> context, DateTimeField dateTimeField) throws IOException {
         ModelFormField modelFormField = dateTimeField.getModelFormField();
-        writer.append(String.format("\n+date-time-field %s", modelFormField.getName()));
+        fieldLine(writer, "date-time-field", modelFormField.getName());
 
         String val=modelFormField.getEntry(context, dateTimeField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("date-time")
@@ -149,75 +211,68 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
         ModelFormField modelFormField = dropDownField.getModelFormField();
         String currentValue = modelFormField.getEntry(context);
 
-        writer.append(String.format("\n+drop-down-field %s\n", modelFormField.getName()));
+        fieldLine(writer, "drop-down-field", modelFormField.getName());
 
         MetaFieldData.Builder fieldData=MetaFieldData.newBuilder()
                 .setWidgetType("drop-down")
                 .setFieldName(modelFormField.getName());
-        MetaListValues.Builder values=MetaListValues.newBuilder();
+        OptionCache.Options options = optionCache != null
+                ? optionCache.getOptions(dropDownField, context, WidgetWorker.getDelegator(context))
+                : new OptionCache.Options(dropDownField.getAllOptionValues(context, WidgetWorker.getDelegator(context)));
+        if (transcript) {
+            for (ModelFormField.OptionValue optionValue : options.getValues()) {
+                optionLine(writer, optionValue.getKey(), optionValue.getDescription());
+            }
+        }
 
-        List<ModelFormField.OptionValue> allOptionValues = dropDownField.getAllOptionValues(context, WidgetWorker.getDelegator(context));
         // if the current value should go first, display it
         if (UtilValidate.isNotEmpty(currentValue) && "first-in-list".equals(dropDownField.getCurrent())) {
             String explicitDescription = dropDownField.getCurrentDescription(context);
             if (UtilValidate.isNotEmpty(explicitDescription)) {
                 this.makeBlockString(writer, modelFormField.getWidgetStyle(),
                         explicitDescription);
-                writer.append(String.format("\n\t- current %s", explicitDescription));
+                if (transcript) {
+                    writer.append("\n\t- current ").append(explicitDescription);
+                }
                 fieldData.setValue(explicitDescription);
 
             } else {
-                String val=FieldInfoWithOptions.getDescriptionForOptionKey(currentValue, allOptionValues);
+                ModelFormField.OptionValue current = options.get(currentValue);
+                String val = current != null ? current.getDescription() : currentValue;
                 this.makeBlockString(writer, modelFormField.getWidgetStyle(),
                         val);
                 fieldData.setValue(val);
             }
-
-            //+
-            for (ModelFormField.OptionValue optionValue : allOptionValues) {
-                writer.append(String.format("\n\t- option %s / %s", optionValue.getKey(), optionValue.getDescription()));
-                values.addRows(MetaRow.newBuilder().addValues(optionValue.getKey())
-                        .addValues(optionValue.getDescription())
-                );
-            }
-            //+
         } else {
-            boolean optionSelected = false;
-            for (ModelFormField.OptionValue optionValue : allOptionValues) {
-                //+
-                writer.append(String.format("\n\t- option %s / %s", optionValue.getKey(), optionValue.getDescription()));
-                values.addRows(MetaRow.newBuilder().addValues(optionValue.getKey())
-                        .addValues(optionValue.getDescription())
-                );
-
-                String noCurrentSelectedKey = dropDownField.getNoCurrentSelectedKey(context);
-                fieldData.setValue(noCurrentSelectedKey);
-                if ((UtilValidate.isNotEmpty(currentValue) && currentValue.equals(optionValue.getKey()) && "selected".equals(dropDownField.getCurrent())) ||
-                        (UtilValidate.isEmpty(currentValue) && noCurrentSelectedKey != null && noCurrentSelectedKey.equals(optionValue.getKey()))) {
-                    this.makeBlockString(writer, modelFormField.getWidgetStyle(), optionValue.getDescription());
-                    optionSelected = true;
-                    //+
-                    fieldData.setValue(optionValue.getDescription());
-                    break;
+            String selectedKey = null;
+            if (UtilValidate.isNotEmpty(currentValue)) {
+                if ("selected".equals(dropDownField.getCurrent())) {
+                    selectedKey = currentValue;
                 }
+            } else {
+                selectedKey = dropDownField.getNoCurrentSelectedKey(context);
             }
-            if (!optionSelected) {
+            ModelFormField.OptionValue selected = options.get(selectedKey);
+            if (selected != null) {
+                this.makeBlockString(writer, modelFormField.getWidgetStyle(), selected.getDescription());
+                fieldData.setValue(selected.getDescription());
+            } else {
                 this.makeBlockString(writer, null, "");
                 fieldData.setValue("");
             }
         }
         appendWhitespace(writer);
 
-        this.formData.addFields(fieldData.setListValues(values).build());
+        emit(fieldData.setListValues(options.getListValues()).build());
     }
 
     public void renderCheckField(Appendable writer, Map<String, Object> context, CheckField checkField) throws IOException {
         ModelFormField modelFormField = checkField.getModelFormField();
-        writer.append(String.format("\n+check-field %s", modelFormField.getName()));
+        fieldLine(writer, "check-field", modelFormField.getName());
 
         this.makeBlockString(writer, null, "");
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("")
                 .setWidgetType("check")
@@ -226,11 +281,11 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderRadioField(Appendable writer, Map<String, Object> context, RadioField radioField) throws IOException {
         ModelFormField modelFormField = radioField.getModelFormField();
-        writer.append(String.format("\n+radio-field %s", modelFormField.getName()));
+        fieldLine(writer, "radio-field", modelFormField.getName());
 
         this.makeBlockString(writer, null, "");
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("")
                 .setWidgetType("radio")
@@ -239,11 +294,11 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderSubmitField(Appendable writer, Map<String, Object> context, SubmitField submitField) throws IOException {
         ModelFormField modelFormField = submitField.getModelFormField();
-        writer.append(String.format("\n+submit-field %s", modelFormField.getName()));
+        fieldLine(writer, "submit-field", modelFormField.getName());
 
         this.makeBlockString(writer, null, "");
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("Submit")
                 .setWidgetType("submit")
@@ -252,11 +307,11 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderResetField(Appendable writer, Map<String, Object> context, ResetField resetField) throws IOException {
         ModelFormField modelFormField = resetField.getModelFormField();
-        writer.append(String.format("\n+reset-field %s", modelFormField.getName()));
+        fieldLine(writer, "reset-field", modelFormField.getName());
 
         this.makeBlockString(writer, null, "");
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("Reset")
                 .setWidgetType("reset")
@@ -265,9 +320,9 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderHiddenField(Appendable writer, Map<String, Object> context, HiddenField hiddenField) throws IOException {
         ModelFormField modelFormField = hiddenField.getModelFormField();
-        writer.append(String.format("\n+hidden-field %s", modelFormField.getName()));
+        fieldLine(writer, "hidden-field", modelFormField.getName());
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("")
                 .setWidgetType("hidden")
@@ -275,8 +330,10 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
     }
 
     public void renderHiddenField(Appendable writer, Map<String, Object> context, ModelFormField modelFormField, String value) throws IOException {
-        writer.append(String.format("\n+hidden-field %s -> %s", modelFormField.getName(), value));
-        this.formData.addFields(MetaFieldData.newBuilder()
+        if (transcript) {
+            writer.append("\n+hidden-field ").append(modelFormField.getName()).append(" -> ").append(value);
+        }
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(value)
                 .setWidgetType("hidden")
@@ -285,8 +342,8 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderIgnoredField(Appendable writer, Map<String, Object> context, IgnoredField ignoredField) throws IOException {
         ModelFormField modelFormField = ignoredField.getModelFormField();
-        writer.append(String.format("\n+ignore-field %s", modelFormField.getName()));
-        this.formData.addFields(MetaFieldData.newBuilder()
+        fieldLine(writer, "ignore-field", modelFormField.getName());
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("")
                 .setWidgetType("ignore")
@@ -294,6 +351,9 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
     }
 
     public void renderFieldTitle(Appendable writer, Map<String, Object> context, ModelFormField modelFormField) throws IOException {
+        if (!transcript) {
+            return;
+        }
         String tempTitleText = modelFormField.getTitle(context);
         //+
         writer.append("\n❐ ");
@@ -318,11 +378,14 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
     }
 
     public void renderFormatListWrapperOpen(Appendable writer, Map<String, Object> context, ModelForm modelForm) throws IOException {
+        if (!transcript) {
+            return;
+        }
         writer.append("\n[");
         List<ModelFormField> childFieldList = modelForm.getFieldList();
         for (ModelFormField childField : childFieldList) {
             //+
-            writer.append(String.format("\n- child-field %s\n", childField.getName()));
+            writer.append("\n- child-field ").append(childField.getName()).append('\n');
 
             int childFieldType = childField.getFieldInfo().getFieldType();
             if (childFieldType == FieldInfo.HIDDEN || childFieldType == FieldInfo.IGNORED) {
@@ -333,7 +396,9 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
     }
 
     public void renderFormatListWrapperClose(Appendable writer, Map<String, Object> context, ModelForm modelForm) throws IOException {
-        writer.append("]\n");
+        if (transcript) {
+            writer.append("]\n");
+        }
     }
     
     public void renderFormatHeaderOpen(Appendable writer, Map<String, Object> context, ModelForm modelForm) throws IOException {
@@ -439,12 +504,14 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderTextFindField(Appendable writer, Map<String, Object> context, TextFindField textFindField) throws IOException {
         ModelFormField modelFormField = textFindField.getModelFormField();
-        writer.append(String.format("\n+text-find-field %s ", modelFormField.getName()));
+        fieldLine(writer, "text-find-field", modelFormField.getName());
         String val=textFindField.getDefaultValue(context);
-        this.makeBlockString(writer, modelFormField.getWidgetStyle(), modelFormField.getEntry(context, val));
+        if (transcript) {
+            this.makeBlockString(writer, modelFormField.getWidgetStyle(), modelFormField.getEntry(context, val));
+        }
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("text-find")
@@ -453,12 +520,12 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderRangeFindField(Appendable writer, Map<String, Object> context, RangeFindField rangeFindField) throws IOException {
         ModelFormField modelFormField = rangeFindField.getModelFormField();
-        writer.append(String.format("\n+range-find-field %s ", modelFormField.getName()));
+        fieldLine(writer, "range-find-field", modelFormField.getName());
         String val=modelFormField.getEntry(context, rangeFindField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("range-find")
@@ -467,12 +534,12 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderDateFindField(Appendable writer, Map<String, Object> context, DateFindField dateFindField) throws IOException {
         ModelFormField modelFormField = dateFindField.getModelFormField();
-        writer.append(String.format("\n+date-find-field %s ", modelFormField.getName()));
+        fieldLine(writer, "date-find-field", modelFormField.getName());
         String val=modelFormField.getEntry(context, dateFindField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("date-find")
@@ -481,12 +548,12 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderLookupField(Appendable writer, Map<String, Object> context, LookupField lookupField) throws IOException {
         ModelFormField modelFormField = lookupField.getModelFormField();
-        writer.append(String.format("\n+lookup-field %s ", modelFormField.getName()));
+        fieldLine(writer, "lookup-field", modelFormField.getName());
         String val=modelFormField.getEntry(context, lookupField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("lookup")
@@ -498,12 +565,12 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderFileField(Appendable writer, Map<String, Object> context, FileField textField) throws IOException {
         ModelFormField modelFormField = textField.getModelFormField();
-        writer.append(String.format("\n+file-field %s ", modelFormField.getName()));
+        fieldLine(writer, "file-field", modelFormField.getName());
         String val=modelFormField.getEntry(context, textField.getDefaultValue(context));
         this.makeBlockString(writer, modelFormField.getWidgetStyle(), val);
         appendWhitespace(writer);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(val)
                 .setWidgetType("file")
@@ -512,10 +579,10 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderPasswordField(Appendable writer, Map<String, Object> context, PasswordField passwordField) throws IOException {
         ModelFormField modelFormField = passwordField.getModelFormField();
-        writer.append(String.format("\n+password-field %s ", modelFormField.getName()));
+        fieldLine(writer, "password-field", modelFormField.getName());
         this.makeBlockString(writer, null, "");
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue("")
                 .setWidgetType("password")
@@ -524,12 +591,12 @@ public class DataFormRenderer extends HtmlWidgetRenderer implements FormStringRe
 
     public void renderImageField(Appendable writer, Map<String, Object> context, ImageField imageField) throws IOException {
         ModelFormField modelFormField = imageField.getModelFormField();
-        writer.append(String.format("\n+image-field %s ", modelFormField.getName()));
+        fieldLine(writer, "image-field", modelFormField.getName());
 
         String value = modelFormField.getEntry(context, imageField.getValue(context));
         this.makeBlockString(writer, null, value);
 
-        this.formData.addFields(MetaFieldData.newBuilder()
+        emit(MetaFieldData.newBuilder()
                 .setFieldName(modelFormField.getName())
                 .setValue(value)
                 .setWidgetType("image")
@@ -1,7 +1,10 @@
 package com.sagas.meta;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.sagas.actions.ActionRequest;
 import com.sagas.actions.ActionResponse;
@@ -12,7 +15,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.ofbiz.base.conversion.ConversionException;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
 import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.service.LocalDispatcher;
@@ -30,6 +35,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import static com.sagas.generic.ProtoValueUtil.defInt;
 import static com.sagas.generic.ProtoValueUtil.defStr;
@@ -37,6 +43,7 @@ import static com.sagas.generic.ProtoValueUtil.defStr;
 @Singleton
 public class FormManager {
     public static final String module = FormManager.class.getName();
+    private static final String resource = "sagas";
 
     public static class FormResult{
         public FormResult(MetaSingleFormData formData, String repr) {
@@ -59,6 +66,17 @@ public class FormManager {
 
     private LocalDispatcher dispatcher;
     private GenericDelegator delegator;
+    @Inject
+    private OptionCache optionCache;
+    // parsed forms and grids by "location#name", grids prefixed with '@'
+    private final Cache<String, ModelForm> forms = CacheBuilder.newBuilder()
+            .maximumSize(UtilProperties.getPropertyAsLong(resource, "form.cache.maxSize", 1000))
+            .build();
+    // built form descriptors by uri, rebuilt when the parsed form has been replaced
+    private final MetaCache<ModelForm, MetaForm> metaForms = new MetaCache<>(
+            UtilProperties.getPropertyAsLong(resource, "form.meta.cache.maxBytes", 16L << 20));
+    private final WidgetFileTimes fileTimes = new WidgetFileTimes(
+            UtilProperties.getPropertyAsLong(resource, "form.cache.checkIntervalMs", 2000));
     private final String[] defaultResourceMaps = new String[]{
             "SetupUiLabels",
             "WebtoolsUiLabels",
@@ -76,12 +94,66 @@ public class FormManager {
 
     // <include-form name="EditBlog" location="component://content/widget/forum/BlogForms.xml"/>
     public ModelForm getModelForm(String name, String location) throws IOException, SAXException, ParserConfigurationException {
-        return FormFactory.getFormFromLocation(location, name, delegator.getModelReader(),
-                dispatcher.getDispatchContext());
+        return getCachedForm(location, location + '#' + name, () -> FormFactory.getFormFromLocation(location, name,
+                delegator.getModelReader(), dispatcher.getDispatchContext()));
     }
     public ModelGrid getModelGrid(String name, String location) throws ParserConfigurationException, SAXException, IOException {
-        return GridFactory.getGridFromLocation(location, name, delegator.getModelReader(),
-                dispatcher.getDispatchContext());
+        return (ModelGrid) getCachedForm(location, '@' + location + '#' + name, () -> GridFactory.getGridFromLocation(location, name,
+                delegator.getModelReader(), dispatcher.getDispatchContext()));
+    }
+
+    private interface FormLoader {
+        ModelForm load() throws IOException, SAXException, ParserConfigurationException;
+    }
+
+    private ModelForm getCachedForm(String location, String key, FormLoader loader) throws IOException, SAXException, ParserConfigurationException {
+        if (fileTimes.isModified(location)) {
+            invalidateLocation(location);
+        }
+        ModelForm form = forms.getIfPresent(key);
+        if (form == null) {
+            // models are immutable, a concurrent load of the same form is only wasted work
+            form = loader.load();
+            if (form != null) {
+                forms.put(key, form);
+            }
+        }
+        return form;
+    }
+
+    /**
+     * Drop the forms of a changed widget file, here and in the widget caches of
+     * OFBiz, the descriptors built from them are rebuilt with the new forms.
+     */
+    private void invalidateLocation(String location) {
+        Debug.logImportant("Widget file " + location + " has changed, reloading its forms", module);
+        String prefix = location + '#';
+        forms.asMap().keySet().removeIf(key -> key.startsWith(prefix) || key.startsWith("@" + prefix));
+        for (String cacheName : new String[]{"widget.form.locationResource", "widget.grid.locationResource"}) {
+            UtilCache<String, Object> cache = UtilCache.findCache(cacheName);
+            if (cache != null) {
+                for (String key : cache.getCacheLineKeys()) {
+                    if (key.startsWith(prefix)) {
+                        cache.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Drop the parsed forms, the form descriptors, the drop-down options and the shared label layers */
+    public void clearCaches() {
+        forms.invalidateAll();
+        metaForms.clear();
+        optionCache.clear();
+        PropertiesManager.clearLabelLayers();
+    }
+
+    /** Size, bytes and hit rate of the form descriptor cache, and the drop-down option counters */
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = metaForms.getStats();
+        stats.put("options", optionCache.getStats());
+        return stats;
     }
 
     public Map<String, Object> createContext(Locale locale) {
@@ -102,16 +174,15 @@ public class FormManager {
             <property-map resource="AccountingUiLabels" map-name="uiLabelMap" global="true"/>
          */
         // PropertiesManager.execPropertyMap(ctx, "ContentUiLabels", "uiLabelMap", true);
-        for (String res : defaultResourceMaps) {
-            PropertiesManager.execPropertyMap(ctx, res, "uiLabelMap", true);
-        }
+        // the bundles are shared per locale, only the stack on top of them is per context
+        ctx.put("uiLabelMap", PropertiesManager.getLabelMap(locale, ctx, defaultResourceMaps));
         return ctx;
     }
 
     public String renderForm(ModelForm form, Locale locale) throws Exception {
         // FoFormRenderer ffr = new FoFormRenderer();
         MetaSingleFormData.Builder formData=MetaSingleFormData.newBuilder();
-        DataFormRenderer ffr = new DataFormRenderer(formData);
+        DataFormRenderer ffr = new DataFormRenderer(formData).setOptionCache(optionCache);
         FormRenderer fr = new FormRenderer(form, ffr);
         StringBuilder writer = new StringBuilder();
         Map<String, Object> ctx = createContext(locale);
@@ -121,7 +192,7 @@ public class FormManager {
 
     public FormResult renderFormData(String formName, String location, String localeName, Map<String, Object> params) throws Exception {
         MetaSingleFormData.Builder formData=MetaSingleFormData.newBuilder();
-        DataFormRenderer ffr = new DataFormRenderer(formData);
+        DataFormRenderer ffr = new DataFormRenderer(formData).setOptionCache(optionCache);
         ModelForm form=getModelForm(formName, location);
         FormRenderer fr = new FormRenderer(form, ffr);
         StringBuilder writer = new StringBuilder();
@@ -150,8 +221,26 @@ public class FormManager {
             valMap=ValueHelper.jsonToMap(requestor.getJsonParameters());
         }
 
-        FormResult result=renderFormData(formName, location, localeName, valMap);
-        return new ActionResponse(0, result.getFormData().toByteString());
+        // the caller only gets the data, skip the text transcript
+        MetaSingleFormData.Builder formData=MetaSingleFormData.newBuilder();
+        renderFormData(formName, location, localeName, valMap, formData::addFields);
+        return new ActionResponse(0, formData.build().toByteString());
+    }
+
+    /**
+     * Data-only render, each field record is handed to the consumer as soon as it
+     * has been rendered and no text transcript is produced.
+     */
+    public void renderFormData(String formName, String location, String localeName, Map<String, Object> params,
+                               Consumer<MetaFieldData> consumer) throws Exception {
+        DataFormRenderer ffr = new DataFormRenderer(consumer, false).setOptionCache(optionCache);
+        ModelForm form=getModelForm(formName, location);
+        FormRenderer fr = new FormRenderer(form, ffr);
+        Map<String, Object> ctx = createContext(UtilMisc.ensureLocale(localeName));
+        if(params!=null) {
+            ctx.putAll(params);
+        }
+        fr.render(DataFormRenderer.NULL_WRITER, ctx);
     }
 
     public String renderFormData(String formName, String location, String localeName) throws Exception{
@@ -171,17 +260,42 @@ public class FormManager {
     // form uri: "component://content/widget/forum/BlogForms.xml;EditBlog;zh_CN"
     // grid uri: "component://webtools/widget/ServiceForms.xml;@JobManagerLockEnable;zh_CN"
     public MetaForm getMetaForm(String uri) throws IOException, SAXException, ParserConfigurationException {
+        return getMetaFormEntry(uri).getMeta();
+    }
+
+    /** The serialized MetaForm of the uri, cached until the widget file changes */
+    public ByteString getMetaFormBytes(String uri) throws IOException, SAXException, ParserConfigurationException {
+        return getMetaFormEntry(uri).getBytes();
+    }
+
+    private MetaCache.Entry<ModelForm, MetaForm> getMetaFormEntry(String uri) throws IOException, SAXException, ParserConfigurationException {
         String[] parts = StringUtils.split(uri, ';');
-        Debug.logImportant(String.format("Retrieve %s, %s, %s", parts[0], parts[1], parts[2]), module);
         Preconditions.checkArgument(parts.length == 3, "Error uri pattern: %s", uri);
-        return getMetaForm(parts[1], parts[0], parts[2]);
+        return getMetaFormEntry(parts[1], parts[0], parts[2]);
+    }
+
+    private MetaCache.Entry<ModelForm, MetaForm> getMetaFormEntry(String name, String location, String localeName) throws IOException, SAXException, ParserConfigurationException {
+        ModelForm modelForm =null;
+        if(name.startsWith("@")){
+            modelForm=getModelGrid(name.substring(1), location);
+        }else {
+            modelForm = getModelForm(name, location);
+        }
+        Preconditions.checkNotNull(modelForm, "form %s;%s absent", location, name);
+
+        String uri = location + ';' + name + ';' + localeName;
+        MetaCache.Entry<ModelForm, MetaForm> entry = metaForms.get(uri, modelForm);
+        if (entry == null) {
+            Debug.logImportant(String.format("Retrieve %s, %s, %s", location, name, localeName), module);
+            entry = metaForms.put(uri, modelForm, buildMetaForm(modelForm, localeName));
+        }
+        return entry;
     }
 
     @RemoteAction
     public ActionResponse getMetaForm(ActionRequest request) throws IOException, GeneralSecurityException, ClassNotFoundException, ConversionException, ParserConfigurationException, SAXException {
         TaFieldValue token=TaFieldValue.parseFrom(request.getPayload());
-        MetaForm payload=getMetaForm(token.getStringVal());
-        return new ActionResponse(0, payload.toByteString());
+        return new ActionResponse(0, getMetaFormBytes(token.getStringVal()));
     }
 
     /**
@@ -195,16 +309,13 @@ public class FormManager {
      * @throws ParserConfigurationException
      */
     public MetaForm getMetaForm(String name, String location, String localeName) throws IOException, SAXException, ParserConfigurationException {
-        ModelForm modelForm =null;
-        if(name.startsWith("@")){
-            modelForm=getModelGrid(name.substring(1), location);
-        }else {
-            modelForm = getModelForm(name, location);
-        }
+        return getMetaFormEntry(name, location, localeName).getMeta();
+    }
+
+    private MetaForm buildMetaForm(ModelForm modelForm, String localeName) {
         MetaForm.Builder metaForm = MetaForm.newBuilder();
         Map<String, Object> ctx = createContext(UtilMisc.ensureLocale(localeName));
 
-        Preconditions.checkNotNull(modelForm, "form %s;%s absent", location, name);
         // Optional.ofNullable(modelForm.getName()).ifPresent(metaForm::setName);
 
         metaForm.setName(modelForm.getName())
@@ -0,0 +1,199 @@
+package com.sagas.meta;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.sagas.actions.ActionRequest;
+import com.sagas.actions.ActionResponse;
+import com.sagas.actions.RemoteAction;
+import com.sagas.generic.ValueHelper;
+import com.sagas.meta.model.FormDataRequestor;
+import com.sagas.meta.model.MetaSingleFormData;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.GenericDelegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.model.ModelEntity;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityFindOptions;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.widget.model.ModelForm;
+import org.apache.ofbiz.widget.model.ModelFormField;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the rows of a grid page by page, straight from an EntityListIterator,
+ * so only one page of rows is in memory.
+ *
+ * The rows are read from the entity of the "_entity" parameter, or else the
+ * default entity of the grid; the other parameters that are fields of the entity
+ * are equality conditions, "_orderBy" is a comma separated order by list, followed
+ * by the primary key so the pages are stable. The database skips to the page
+ * (offset/limit of the find options) and the rows are read forward-only. Each row
+ * is rendered data-only (see DataFormRenderer) into a MetaSingleFormData, a page is
+ * the rows packed as length-delimited messages, like MetaManager.getMetaEntities.
+ * The grid actions are not run, the rows come from the query only.
+ */
+@Singleton
+public class GridPager {
+    public static final String module = GridPager.class.getName();
+    private static final String resource = "sagas";
+    public static final String ENTITY = "_entity";
+    public static final String ORDER_BY = "_orderBy";
+    public static final String OFFSET = "_offset";
+    public static final String LIMIT = "_limit";
+
+    private final int defaultPageSize = UtilProperties.getPropertyAsInteger(resource, "form.grid.pageSize", 100);
+    private final int maxPageSize = UtilProperties.getPropertyAsInteger(resource, "form.grid.maxPageSize", 1000);
+    private final FormManager formManager;
+    private final GenericDelegator delegator;
+    private final OptionCache optionCache;
+
+    @Inject
+    GridPager(FormManager formManager, GenericDelegator delegator, OptionCache optionCache) {
+        this.formManager = formManager;
+        this.delegator = delegator;
+        this.optionCache = optionCache;
+    }
+
+    /** Renders rows with the fields of a grid, reusing one context for all of them */
+    private class RowRenderer {
+        private final ModelForm grid;
+        private final Map<String, Object> baseContext;
+        private final DataFormRenderer renderer;
+        private MetaSingleFormData.Builder row;
+
+        RowRenderer(ModelForm grid, String localeName) {
+            this.grid = grid;
+            this.baseContext = formManager.createContext(UtilMisc.ensureLocale(localeName));
+            this.renderer = new DataFormRenderer(field -> row.addFields(field), false).setOptionCache(optionCache);
+        }
+
+        ByteString render(List<GenericValue> values) throws IOException {
+            List<ByteString> rows = Lists.newArrayListWithCapacity(values.size());
+            for (GenericValue value : values) {
+                Map<String, Object> context = Maps.newHashMap(baseContext);
+                context.putAll(value);
+                if (UtilValidate.isNotEmpty(grid.getDefaultMapName())) {
+                    context.put(grid.getDefaultMapName(), value);
+                }
+                row = MetaSingleFormData.newBuilder();
+                for (ModelFormField field : grid.getFieldList()) {
+                    if (field.shouldUse(context)) {
+                        field.renderFieldString(DataFormRenderer.NULL_WRITER, context, renderer);
+                    }
+                }
+                rows.add(row.build().toByteString());
+            }
+            return MetaManager.pack(rows);
+        }
+    }
+
+    /** Opens a forward-only iterator on the rows of one page, the caller closes it */
+    private EntityListIterator openPage(ModelForm grid, Map<String, Object> params, int offset, int limit)
+            throws GenericEntityException {
+        String entityName = (String) params.get(ENTITY);
+        if (UtilValidate.isEmpty(entityName)) {
+            entityName = grid.getDefaultEntityName();
+        }
+        Preconditions.checkArgument(UtilValidate.isNotEmpty(entityName), "No entity for grid %s", grid.getName());
+        ModelEntity entity = delegator.getModelEntity(entityName);
+        Preconditions.checkArgument(entity != null, "Cannot find entity %s", entityName);
+
+        Map<String, Object> conditions = Maps.newHashMap();
+        params.forEach((name, value) -> {
+            if (!name.startsWith("_") && entity.isField(name)) {
+                conditions.put(name, value);
+            }
+        });
+        List<String> orderBy = Lists.newArrayList();
+        String orderByParam = (String) params.get(ORDER_BY);
+        if (UtilValidate.isNotEmpty(orderByParam)) {
+            orderBy.addAll(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(orderByParam));
+        }
+        for (String pk : entity.getPkFieldNames()) {
+            if (!orderBy.contains(pk)) {
+                orderBy.add(pk);
+            }
+        }
+
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setOffset(offset);
+        findOptions.setLimit(limit);
+        findOptions.setFetchSize(limit);
+        findOptions.setResultSetType(EntityFindOptions.TYPE_FORWARD_ONLY);
+        return delegator.find(entityName, EntityCondition.makeCondition(conditions), null, null, orderBy, findOptions);
+    }
+
+    private ModelForm getGrid(String gridName, String location) throws Exception {
+        ModelForm grid = formManager.getModelGrid(gridName, location);
+        Preconditions.checkNotNull(grid, "grid %s;%s absent", location, gridName);
+        return grid;
+    }
+
+    /**
+     * One page of rows, empty when the offset is past the last row. The limit must be
+     * between 1 and form.grid.maxPageSize.
+     */
+    public ByteString renderPage(String gridName, String location, String localeName, Map<String, Object> params,
+                                 int offset, int limit) throws Exception {
+        Preconditions.checkArgument(offset >= 0, "Invalid page offset %s", offset);
+        Preconditions.checkArgument(limit > 0 && limit <= maxPageSize, "Page limit %s is not in 1..%s", limit, maxPageSize);
+        Preconditions.checkArgument(offset <= Integer.MAX_VALUE - limit, "Page offset %s is too large", offset);
+        ModelForm grid = getGrid(gridName, location);
+        RowRenderer renderer = new RowRenderer(grid, localeName);
+        // the iterator holds a connection, the transaction scopes it and lets the driver stream
+        boolean beganTransaction = TransactionUtil.begin();
+        try {
+            // the database skips to the page and returns only its rows
+            List<GenericValue> values = Lists.newArrayListWithCapacity(limit);
+            try (EntityListIterator rows = openPage(grid, params, offset, limit)) {
+                GenericValue value;
+                while (values.size() < limit && (value = rows.next()) != null) {
+                    values.add(value);
+                }
+            }
+            ByteString page = renderer.render(values);
+            TransactionUtil.commit(beganTransaction);
+            return page;
+        } catch (Exception e) {
+            TransactionUtil.rollback(beganTransaction, "Cannot render page of grid " + gridName, e);
+            throw e;
+        }
+    }
+
+    /**
+     * A grid page, the uri is "location;grid name;locale", the json parameters hold
+     * the conditions and the "_offset" and "_limit" of the page.
+     */
+    @RemoteAction
+    public ActionResponse renderGridPage(ActionRequest request) throws Exception {
+        FormDataRequestor requestor = FormDataRequestor.parseFrom(request.getPayload());
+        String[] parts = StringUtils.split(requestor.getUri(), ';');
+        Preconditions.checkArgument(parts.length == 3, "Error uri pattern: %s", requestor.getUri());
+        Map<String, Object> params = Maps.newHashMap();
+        if (UtilValidate.isNotEmpty(requestor.getJsonParameters())) {
+            params = ValueHelper.jsonToMap(requestor.getJsonParameters());
+        }
+        String gridName = parts[1].startsWith("@") ? parts[1].substring(1) : parts[1];
+        ByteString page = renderPage(gridName, parts[0], parts[2], params,
+                intParam(params, OFFSET, 0), intParam(params, LIMIT, defaultPageSize));
+        return new ActionResponse(0, page);
+    }
+
+    private static int intParam(Map<String, Object> params, String name, int defaultValue) {
+        Object value = params.get(name);
+        return value != null ? Integer.parseInt(value.toString().trim()) : defaultValue;
+    }
+}
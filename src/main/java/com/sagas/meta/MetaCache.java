@@ -0,0 +1,86 @@
+package com.sagas.meta;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built meta messages by name, with their serialized bytes so replies don't encode
+ * them again. An entry is bound to the model object it was built from and is
+ * rebuilt once the model has been reloaded; the cache is bounded by the total size
+ * of the serialized messages.
+ */
+class MetaCache<T, M extends MessageLite> {
+    private final Cache<String, Entry<T, M>> cache;
+    // entries found but built from a reloaded model, counted as hits by the cache stats
+    private final LongAdder stale = new LongAdder();
+
+    static class Entry<T, M extends MessageLite> {
+        private final T model;
+        private final M meta;
+        private final ByteString bytes;
+
+        Entry(T model, M meta) {
+            this.model = model;
+            this.meta = meta;
+            this.bytes = meta.toByteString();
+        }
+
+        M getMeta() {
+            return meta;
+        }
+
+        ByteString getBytes() {
+            return bytes;
+        }
+    }
+
+    MetaCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .<String, Entry<T, M>>weigher((name, entry) -> entry.bytes.size() + name.length())
+                .recordStats()
+                .build();
+    }
+
+    /** The entry built from this model, null when it is missing or was built from an older model */
+    Entry<T, M> get(String name, T model) {
+        Entry<T, M> entry = cache.getIfPresent(name);
+        if (entry != null && entry.model != model) {
+            cache.asMap().remove(name, entry);
+            stale.increment();
+            return null;
+        }
+        return entry;
+    }
+
+    Entry<T, M> put(String name, T model, M meta) {
+        Entry<T, M> entry = new Entry<>(model, meta);
+        cache.put(name, entry);
+        return entry;
+    }
+
+    void clear() {
+        cache.invalidateAll();
+    }
+
+    Map<String, Object> getStats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> values = Maps.newLinkedHashMap();
+        values.put("size", cache.size());
+        values.put("bytes", cache.asMap().values().stream().mapToLong(entry -> entry.bytes.size()).sum());
+        long hits = stats.hitCount() - stale.sum();
+        long misses = stats.missCount() + stale.sum();
+        values.put("hits", hits);
+        values.put("misses", misses);
+        values.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        values.put("evictions", stats.evictionCount());
+        return values;
+    }
+}
@@ -2,8 +2,13 @@ package com.sagas.meta;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.sagas.meta.model.*;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.entity.GenericDelegator;
+import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.model.ModelEntity;
 import org.apache.ofbiz.entity.model.ModelField;
 import org.apache.ofbiz.entity.model.ModelRelation;
@@ -13,13 +18,27 @@ import org.apache.ofbiz.service.ModelService;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Builds the meta messages of entities and services. Built messages are cached
+ * with their serialized bytes, bounded by meta.cache.*.maxBytes, and rebuilt when
+ * the entity or service definition has been reloaded.
+ */
 @Singleton
 public class MetaManager {
-    private Map<String, MetaEntity> entities= Maps.newConcurrentMap();
-    private Map<String, MetaService> services=Maps.newConcurrentMap();
+    private static final String module = MetaManager.class.getName();
+    private static final String resource = "sagas";
+    private final MetaCache<ModelEntity, MetaEntity> entities = new MetaCache<>(
+            UtilProperties.getPropertyAsLong(resource, "meta.cache.entities.maxBytes", 32L << 20));
+    private final MetaCache<ModelService, MetaService> services = new MetaCache<>(
+            UtilProperties.getPropertyAsLong(resource, "meta.cache.services.maxBytes", 32L << 20));
 
     private LocalDispatcher dispatcher;
     private GenericDelegator delegator;
@@ -44,13 +63,25 @@ public class MetaManager {
     }
 
     public MetaService getMetaService(String serviceName) throws GenericServiceException {
-        MetaService findIt=services.get(serviceName);
-        if(findIt!=null){
-            return findIt;
+        return getServiceEntry(serviceName).getMeta();
+    }
+
+    /** The serialized MetaService, ready to be sent as payload body */
+    public ByteString getMetaServiceBytes(String serviceName) throws GenericServiceException {
+        return getServiceEntry(serviceName).getBytes();
+    }
+
+    private MetaCache.Entry<ModelService, MetaService> getServiceEntry(String serviceName) throws GenericServiceException {
+        ModelService srv=dispatcher.getDispatchContext().getModelService(serviceName);
+        MetaCache.Entry<ModelService, MetaService> entry=services.get(serviceName, srv);
+        if(entry==null){
+            entry=services.put(serviceName, srv, buildMetaService(srv));
         }
+        return entry;
+    }
 
+    private MetaService buildMetaService(ModelService srv) {
         MetaService.Builder meta=MetaService.newBuilder();
-        ModelService srv=dispatcher.getDispatchContext().getModelService(serviceName);
         meta.setName(srv.name).setDefinitionLocation(srv.definitionLocation)
                 .setDescription(ensure(srv.description))
                 .setEngineName(srv.engineName)
@@ -110,18 +141,32 @@ public class MetaManager {
                     .setNotificationMode(ensure(noti.notificationMode));
         });
 
-        findIt= meta.build();
-        return findIt;
+        return meta.build();
     }
 
     public MetaEntity getMetaEntity(String entityName){
-        MetaEntity findIt=entities.get(entityName);
-        if(findIt!=null){
-            return findIt;
+        return getEntityEntry(entityName).getMeta();
+    }
+
+    /** The serialized MetaEntity, ready to be sent as payload body */
+    public ByteString getMetaEntityBytes(String entityName){
+        return getEntityEntry(entityName).getBytes();
+    }
+
+    private MetaCache.Entry<ModelEntity, MetaEntity> getEntityEntry(String entityName){
+        ModelEntity ent= delegator.getModelEntity(entityName);
+        if(ent==null){
+            throw new RuntimeException("Cannot find entity "+entityName);
+        }
+        MetaCache.Entry<ModelEntity, MetaEntity> entry=entities.get(entityName, ent);
+        if(entry==null){
+            entry=entities.put(entityName, ent, buildMetaEntity(ent));
         }
+        return entry;
+    }
 
+    private MetaEntity buildMetaEntity(ModelEntity ent){
         MetaEntity.Builder meta=MetaEntity.newBuilder();
-        ModelEntity ent= delegator.getModelEntity(entityName);
         meta.setEntityName(ent.getEntityName())
                 .setPackageName(ent.getPackageName())
                 .setDependentOn(ent.getDependentOn())
@@ -155,11 +200,98 @@ public class MetaManager {
         meta.addAllViewEntities(Lists.newArrayList(ent.getViewConvertorsIterator()));
         meta.addAllPks(ent.getPkFieldNames());
         meta.addAllNopks(ent.getNoPkFieldNames());
-        findIt= meta.build();
+        return meta.build();
+    }
+
+    /**
+     * The MetaEntity messages of the entities, packed in one body as a sequence of
+     * length-delimited messages (varint size followed by the message bytes, as
+     * written by writeDelimitedTo), in the order of the names.
+     */
+    public ByteString getMetaEntities(Collection<String> entityNames) throws IOException {
+        List<ByteString> messages=Lists.newArrayListWithCapacity(entityNames.size());
+        for (String entityName : entityNames) {
+            messages.add(getMetaEntityBytes(entityName));
+        }
+        return pack(messages);
+    }
+
+    /** The MetaService messages of the services, packed like getMetaEntities */
+    public ByteString getMetaServices(Collection<String> serviceNames) throws IOException, GenericServiceException {
+        List<ByteString> messages=Lists.newArrayListWithCapacity(serviceNames.size());
+        for (String serviceName : serviceNames) {
+            messages.add(getMetaServiceBytes(serviceName));
+        }
+        return pack(messages);
+    }
+
+    /** Names of the entities in the package or in its sub-packages */
+    public List<String> getPackageEntityNames(String packageName) throws GenericEntityException {
+        List<String> names=Lists.newArrayList();
+        for (String entityName : delegator.getModelReader().getEntityNames()) {
+            String entityPackage=delegator.getModelEntity(entityName).getPackageName();
+            if(entityPackage!=null && (entityPackage.equals(packageName) || entityPackage.startsWith(packageName+"."))){
+                names.add(entityName);
+            }
+        }
+        return names;
+    }
+
+    static ByteString pack(List<ByteString> messages) throws IOException {
+        int size=0;
+        for (ByteString message : messages) {
+            size+=CodedOutputStream.computeUInt32SizeNoTag(message.size())+message.size();
+        }
+        ByteString.Output bytes=ByteString.newOutput(size);
+        CodedOutputStream out=CodedOutputStream.newInstance(bytes, Math.max(size, 1));
+        for (ByteString message : messages) {
+            out.writeUInt32NoTag(message.size());
+            out.writeRawBytes(message);
+        }
+        out.flush();
+        return bytes.toByteString();
+    }
+
+    /**
+     * Build the meta of all entities in the background on a fork-join pool, so the
+     * first clients find them cached.
+     */
+    public void warmUp(int parallelism) {
+        ForkJoinPool pool=new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        pool.execute(() -> {
+            long start=System.currentTimeMillis();
+            AtomicInteger failed=new AtomicInteger();
+            try {
+                // the parallel stream runs on the pool it is started from
+                delegator.getModelReader().getEntityNames().parallelStream().forEach(entityName -> {
+                    try {
+                        getMetaEntityBytes(entityName);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        Debug.logWarning("Cannot build meta of entity "+entityName+": "+e.getMessage(), module);
+                    }
+                });
+                Debug.logImportant("Meta of entities built in "+(System.currentTimeMillis()-start)
+                        +" ms, "+failed.get()+" failed", module);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Cannot warm up the entity meta", module);
+            } finally {
+                pool.shutdown();
+            }
+        });
+    }
+
+    /** Size, bytes and hit rate of the entity and service caches */
+    public Map<String, Map<String, Object>> getCacheStats(){
+        Map<String, Map<String, Object>> stats=Maps.newLinkedHashMap();
+        stats.put("entities", entities.getStats());
+        stats.put("services", services.getStats());
+        return stats;
+    }
 
-        // cache it
-        this.entities.put(entityName, findIt);
-        return findIt;
+    public void clearCaches(){
+        entities.clear();
+        services.clear();
     }
 
     private MetaRelation getRelation(ModelRelation rel) {
@@ -0,0 +1,244 @@
+package com.sagas.meta;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sagas.generic.EntityEventHub;
+import com.sagas.meta.model.MetaListValues;
+import com.sagas.meta.model.MetaRow;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.string.FlexibleStringExpander;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.model.ModelEntity;
+import org.apache.ofbiz.widget.model.ModelFormField;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolved drop-down options by form field and locale, so entity options are not
+ * queried on every render.
+ *
+ * Only fields whose options depend on nothing but the locale are cached: single
+ * options and entity options without constraints, not filtered by date, whose
+ * expressions only use the locale, the labels or the fields of the option entity.
+ * Entries expire after form.options.cache.ttlSeconds, and as soon as one of their
+ * entities changes: each entity has a generation counter, bumped by an EntityEventHub
+ * change listener (on the change and again once its transaction has completed), and
+ * an entry is only used while the generations it was built with are current.
+ */
+@Singleton
+public class OptionCache {
+    private static final String resource = "sagas";
+    // root name of each ${...} expression, "groovy" and "bsh" for scripts
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{\\s*([A-Za-z_][A-Za-z0-9_]*)");
+    // context entries of the form context that only depend on the locale
+    private static final Set<String> LOCALE_DEPENDENT = Sets.newHashSet("locale", "uiLabelMap");
+
+    private final Cache<Key, Options> cache = CacheBuilder.newBuilder()
+            .maximumSize(UtilProperties.getPropertyAsLong(resource, "form.options.cache.maxSize", 1000))
+            .expireAfterWrite(UtilProperties.getPropertyAsLong(resource, "form.options.cache.ttlSeconds", 300), TimeUnit.SECONDS)
+            .build();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final EntityEventHub eventHub;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncached = new LongAdder();
+
+    @Inject
+    OptionCache(EntityEventHub eventHub) {
+        this.eventHub = eventHub;
+    }
+
+    /** The options of a drop-down with an index by key and their list values message */
+    public static class Options {
+        private final List<ModelFormField.OptionValue> values;
+        private final Map<String, ModelFormField.OptionValue> byKey;
+        private final MetaListValues listValues;
+        // entities the options were read from, with their generation at that time
+        private final String[] entities;
+        private final long[] entityGenerations;
+
+        public Options(List<ModelFormField.OptionValue> values) {
+            this(values, new String[0], new long[0]);
+        }
+
+        Options(List<ModelFormField.OptionValue> values, String[] entities, long[] entityGenerations) {
+            this.values = values;
+            this.byKey = Maps.newHashMapWithExpectedSize(values.size());
+            MetaListValues.Builder listValues = MetaListValues.newBuilder();
+            for (ModelFormField.OptionValue value : values) {
+                // the first option of a key wins, as in getDescriptionForOptionKey
+                byKey.putIfAbsent(value.getKey(), value);
+                listValues.addRows(MetaRow.newBuilder().addValues(value.getKey()).addValues(value.getDescription()));
+            }
+            this.listValues = listValues.build();
+            this.entities = entities;
+            this.entityGenerations = entityGenerations;
+        }
+
+        public List<ModelFormField.OptionValue> getValues() {
+            return values;
+        }
+
+        /** The option of the key, null when there is none */
+        public ModelFormField.OptionValue get(String key) {
+            return key != null ? byKey.get(key) : null;
+        }
+
+        public MetaListValues getListValues() {
+            return listValues;
+        }
+    }
+
+    private static class Key {
+        private final ModelFormField field;
+        private final Locale locale;
+
+        Key(ModelFormField field, Locale locale) {
+            this.field = field;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return field == other.field && Objects.equals(locale, other.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(field) * 31 + Objects.hashCode(locale);
+        }
+    }
+
+    public Options getOptions(ModelFormField.DropDownField dropDownField, Map<String, Object> context, Delegator delegator) {
+        String[] entities = getCacheableEntities(dropDownField, delegator);
+        if (entities == null) {
+            uncached.increment();
+            return new Options(dropDownField.getAllOptionValues(context, delegator));
+        }
+
+        Key key = new Key(dropDownField.getModelFormField(), (Locale) context.get("locale"));
+        Options options = cache.getIfPresent(key);
+        if (options != null && isCurrent(options)) {
+            hits.increment();
+            return options;
+        }
+        misses.increment();
+        // read the generations first, a change during the query makes the entry stale at once
+        long[] entityGenerations = new long[entities.length];
+        for (int i = 0; i < entities.length; i++) {
+            entityGenerations[i] = generation(entities[i]).get();
+        }
+        options = new Options(dropDownField.getAllOptionValues(context, delegator), entities, entityGenerations);
+        cache.put(key, options);
+        return options;
+    }
+
+    /** Entities of the options when they can be cached, null when they depend on the context */
+    private static String[] getCacheableEntities(ModelFormField.DropDownField dropDownField, Delegator delegator) {
+        List<String> entities = Lists.newArrayList();
+        for (ModelFormField.OptionSource source : dropDownField.getOptionSources()) {
+            if (source instanceof ModelFormField.EntityOptions) {
+                ModelFormField.EntityOptions entityOptions = (ModelFormField.EntityOptions) source;
+                ModelEntity model = delegator.getModelEntity(entityOptions.getEntityName());
+                if (model == null || !entityOptions.getConstraintList().isEmpty()) {
+                    return null;
+                }
+                // the rows change with the time, without filter-by-date it defaults to entities with a thruDate
+                String filterByDate = String.valueOf(entityOptions.getFilterByDate());
+                if ("true".equals(filterByDate) || (!"false".equals(filterByDate) && model.isField("thruDate"))) {
+                    return null;
+                }
+                if (!isContextFree(entityOptions.getDescription(), model)) {
+                    return null;
+                }
+                entities.add(entityOptions.getEntityName());
+            } else if (source instanceof ModelFormField.SingleOption) {
+                ModelFormField.SingleOption option = (ModelFormField.SingleOption) source;
+                if (!isContextFree(option.getKey(), null) || !isContextFree(option.getDescription(), null)) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return entities.toArray(new String[0]);
+    }
+
+    /**
+     * Whether the expression reads nothing from the context but the locale, the labels
+     * and the fields of the option entity; scripts are never context free.
+     */
+    private static boolean isContextFree(FlexibleStringExpander expander, ModelEntity model) {
+        if (expander == null || expander.isEmpty()) {
+            return true;
+        }
+        Matcher matcher = VARIABLE.matcher(expander.getOriginal());
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            if (LOCALE_DEPENDENT.contains(name)) {
+                continue;
+            }
+            if (model == null || !model.isField(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isCurrent(Options options) {
+        for (int i = 0; i < options.entities.length; i++) {
+            if (generation(options.entities[i]).get() != options.entityGenerations[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AtomicLong generation(String entityName) {
+        AtomicLong generation = generations.get(entityName);
+        if (generation == null) {
+            synchronized (generations) {
+                generation = generations.get(entityName);
+                if (generation == null) {
+                    AtomicLong created = new AtomicLong();
+                    eventHub.addChangeListener(entityName, value -> created.incrementAndGet());
+                    generations.put(entityName, created);
+                    generation = created;
+                }
+            }
+        }
+        return generation;
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = Maps.newLinkedHashMap();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("uncached", uncached.sum());
+        stats.put("size", cache.size());
+        return stats;
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
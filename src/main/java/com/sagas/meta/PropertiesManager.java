@@ -1,5 +1,6 @@
 package com.sagas.meta;
 
+import com.google.common.collect.Lists;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilProperties;
@@ -9,11 +10,37 @@ import org.apache.ofbiz.base.util.string.FlexibleStringExpander;
 import org.apache.ofbiz.widget.model.ModelWidget;
 import org.w3c.dom.Element;
 
+import java.util.List;
+import java.util.ListResourceBundle;
 import java.util.Locale;
 import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PropertiesManager {
     public static final String module = PropertiesManager.class.getName();
+    // read-only label layers by locale and resources, shared by all label maps
+    private static final Map<String, ResourceBundleMapWrapper.InternalRbmWrapper[]> labelLayers = new ConcurrentHashMap<>();
+
+    /** Empty top bundle of a label map, it only carries the locale for later property-maps */
+    private static class LocaleBundle extends ListResourceBundle {
+        private final Locale locale;
+
+        LocaleBundle(Locale locale) {
+            this.locale = locale;
+        }
+
+        @Override
+        public Locale getLocale() {
+            return locale;
+        }
+
+        @Override
+        protected Object[][] getContents() {
+            return new Object[0][];
+        }
+    }
+
     public static class PropertyMap {
         private final FlexibleMapAccessor<ResourceBundleMapWrapper> mapNameAcsr;
         private final FlexibleStringExpander resourceExdr;
@@ -72,6 +99,42 @@ public class PropertiesManager {
         }
     }
 
+    /**
+     * A label map of the resources, same as running a property-map per resource, but
+     * the bundles are wrapped once per locale and shared: the returned map only stacks
+     * the shared layers under an empty top layer of its own, so resources added to it
+     * later never reach the shared layers.
+     */
+    public static ResourceBundleMapWrapper getLabelMap(Locale locale, Map<String, Object> context, String... resources) {
+        Locale bundleLocale = locale != null ? locale : Locale.getDefault();
+        String key = bundleLocale + ":" + String.join(",", resources);
+        ResourceBundleMapWrapper.InternalRbmWrapper[] layers = labelLayers.computeIfAbsent(key,
+                k -> createLayers(bundleLocale, resources));
+        ResourceBundleMapWrapper labelMap = new ResourceBundleMapWrapper(new LocaleBundle(bundleLocale), context);
+        for (ResourceBundleMapWrapper.InternalRbmWrapper layer : layers) {
+            labelMap.addBottomResourceBundle(layer);
+        }
+        return labelMap;
+    }
+
+    private static ResourceBundleMapWrapper.InternalRbmWrapper[] createLayers(Locale locale, String[] resources) {
+        List<ResourceBundleMapWrapper.InternalRbmWrapper> layers = Lists.newArrayList();
+        for (String resource : resources) {
+            try {
+                ResourceBundle bundle = UtilProperties.getResourceBundle(resource, locale);
+                layers.add(new ResourceBundleMapWrapper.InternalRbmWrapper(bundle));
+            } catch (IllegalArgumentException e) {
+                Debug.logError(e, "Error adding resource bundle [" + resource + "]: " + e.toString(), module);
+            }
+        }
+        return layers.toArray(new ResourceBundleMapWrapper.InternalRbmWrapper[0]);
+    }
+
+    /** Drop the shared label layers, e.g. after the label files have been reloaded */
+    public static void clearLabelLayers() {
+        labelLayers.clear();
+    }
+
     // property-map resource="ContentUiLabels" map-name="uiLabelMap" global="true"/>
     public static void execPropertyMap(Map<String, Object> context, String resource, String mapName, boolean global){
         PropertyMap propertyMap=new PropertyMap(resource,mapName,global);
@@ -0,0 +1,75 @@
+package com.sagas.meta;
+
+import org.apache.ofbiz.base.location.FlexibleLocation;
+import org.apache.ofbiz.base.util.Debug;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the modification time of widget files by location, such as
+ * "component://content/widget/forum/BlogForms.xml". A file is checked at most
+ * once per interval, so callers can ask on every request.
+ */
+class WidgetFileTimes {
+    private static final String module = WidgetFileTimes.class.getName();
+
+    private final long checkIntervalMillis;
+    private final Map<String, FileTime> files = new ConcurrentHashMap<>();
+
+    private static class FileTime {
+        // null when the location is not a plain file, e.g. inside a jar
+        final File file;
+        volatile long modified;
+        volatile long checked;
+
+        FileTime(File file) {
+            this.file = file;
+            this.modified = file != null ? file.lastModified() : 0;
+            this.checked = System.currentTimeMillis();
+        }
+    }
+
+    WidgetFileTimes(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Whether the file has been modified since the previous call that returned true,
+     * or since the location was first seen.
+     */
+    boolean isModified(String location) {
+        FileTime time = files.get(location);
+        if (time == null) {
+            files.putIfAbsent(location, new FileTime(resolve(location)));
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (time.file == null || now - time.checked < checkIntervalMillis) {
+            return false;
+        }
+        time.checked = now;
+        long modified = time.file.lastModified();
+        synchronized (time) {
+            if (modified == time.modified) {
+                return false;
+            }
+            time.modified = modified;
+        }
+        return true;
+    }
+
+    private static File resolve(String location) {
+        try {
+            URL url = FlexibleLocation.resolveLocation(location);
+            if (url != null && "file".equals(url.getProtocol())) {
+                return new File(url.toURI());
+            }
+        } catch (Exception e) {
+            Debug.logWarning("Cannot resolve widget location " + location + ": " + e.getMessage(), module);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,251 @@
+package com.sagas.security;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTCreator;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The active token keys by key id ("kid" header), each with a verifier built once
+ * and shared by all threads, and the key new tokens are signed with.
+ *
+ * The keys are read from the properties file named by security.keys.file:
+ * <pre>
+ * signing=2024-06
+ * 2024-06.alg=RS256
+ * 2024-06.publicKey=base64 X.509 encoded key
+ * 2024-06.privateKey=base64 PKCS#8 encoded key, only on the nodes issuing tokens
+ * 2024-01.alg=HS256
+ * 2024-01.secret=...
+ * </pre>
+ * Supported algorithms are HS256/384/512, RS256/384/512 and ES256/384/512. The file
+ * is checked for changes every security.keys.reloadSeconds, so keys rotate without a
+ * restart: add the new key, switch signing to it, and drop the old key once its
+ * tokens have expired. Tokens without a kid are verified with the legacy secret
+ * (security.jwt.secret) unless security.keys.acceptLegacy is false.
+ */
+@Singleton
+public class KeyRegistry {
+    private static final String module = KeyRegistry.class.getName();
+    private static final String resource = "sagas";
+    public static final String ISSUER = "sagas";
+
+    private final String keyFile = UtilProperties.getPropertyValue(resource, "security.keys.file", "");
+    private final Algorithm legacy = Algorithm.HMAC256(UtilProperties.getPropertyValue(resource, "security.jwt.secret", "secret"));
+    private final JWTVerifier legacyVerifier = JWT.require(legacy).withIssuer(ISSUER).build();
+    private final boolean acceptLegacy = !"false".equals(UtilProperties.getPropertyValue(resource, "security.keys.acceptLegacy", "true"));
+
+    private final List<Runnable> reloadListeners = Lists.newCopyOnWriteArrayList();
+    private volatile Keys keys = new Keys(ImmutableMap.of(), null, null);
+    private long loadedModified;
+    private ScheduledExecutorService watcher;
+
+    /** An immutable set of keys, replaced as a whole on reload */
+    static class Keys {
+        final Map<String, JWTVerifier> verifiers;
+        final String signingKid;
+        final Algorithm signing;
+
+        Keys(Map<String, JWTVerifier> verifiers, String signingKid, Algorithm signing) {
+            this.verifiers = verifiers;
+            this.signingKid = signingKid;
+            this.signing = signing;
+        }
+    }
+
+    public KeyRegistry() {
+        if (!keyFile.isEmpty()) {
+            reload();
+            long interval = UtilProperties.getPropertyAsLong(resource, "security.keys.reloadSeconds", 60);
+            if (interval > 0) {
+                watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "sagas-key-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                watcher.scheduleWithFixedDelay(this::reloadIfModified, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private void reloadIfModified() {
+        try {
+            if (new File(keyFile).lastModified() != loadedModified) {
+                reload();
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled watch
+            Debug.logError(e, "Cannot reload token keys from " + keyFile, module);
+        }
+    }
+
+    /** Read the key file again, the current keys stay active when it is invalid */
+    public synchronized void reload() {
+        File file = new File(keyFile);
+        long modified = file.lastModified();
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            this.keys = load(properties);
+            Debug.logImportant("Loaded token keys " + keys.verifiers.keySet() + ", signing with " + keys.signingKid, module);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            Debug.logError(e, "Cannot load token keys from " + file + ", keeping the current keys", module);
+            return;
+        } finally {
+            this.loadedModified = modified;
+        }
+        for (Runnable listener : reloadListeners) {
+            listener.run();
+        }
+    }
+
+    static Keys load(Properties properties) throws GeneralSecurityException {
+        ImmutableMap.Builder<String, JWTVerifier> verifiers = ImmutableMap.builder();
+        Map<String, Algorithm> algorithms = Maps.newHashMap();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".alg")) {
+                continue;
+            }
+            String kid = name.substring(0, name.length() - ".alg".length());
+            Algorithm algorithm = algorithm(properties.getProperty(name).trim(),
+                    properties.getProperty(kid + ".secret"),
+                    properties.getProperty(kid + ".publicKey"),
+                    properties.getProperty(kid + ".privateKey"));
+            algorithms.put(kid, algorithm);
+            verifiers.put(kid, JWT.require(algorithm).withIssuer(ISSUER).build());
+        }
+
+        String signingKid = properties.getProperty("signing");
+        Algorithm signing = null;
+        if (signingKid != null) {
+            signingKid = signingKid.trim();
+            signing = algorithms.get(signingKid);
+            if (signing == null) {
+                throw new IllegalArgumentException("Unknown signing key " + signingKid);
+            }
+        }
+        return new Keys(verifiers.build(), signingKid, signing);
+    }
+
+    static Algorithm algorithm(String alg, String secret, String publicKey, String privateKey) throws GeneralSecurityException {
+        if (alg.length() < 3) {
+            throw new IllegalArgumentException("Unsupported key algorithm " + alg);
+        }
+        String bits = alg.substring(2);
+        switch (alg.substring(0, 2)) {
+            case "HS":
+                if (secret == null) {
+                    throw new IllegalArgumentException(alg + " key without secret");
+                }
+                switch (bits) {
+                    case "256": return Algorithm.HMAC256(secret);
+                    case "384": return Algorithm.HMAC384(secret);
+                    case "512": return Algorithm.HMAC512(secret);
+                }
+                break;
+            case "RS": {
+                RSAPublicKey pub = (RSAPublicKey) publicKey("RSA", publicKey);
+                RSAPrivateKey priv = (RSAPrivateKey) privateKey("RSA", privateKey);
+                switch (bits) {
+                    case "256": return Algorithm.RSA256(pub, priv);
+                    case "384": return Algorithm.RSA384(pub, priv);
+                    case "512": return Algorithm.RSA512(pub, priv);
+                }
+                break;
+            }
+            case "ES": {
+                ECPublicKey pub = (ECPublicKey) publicKey("EC", publicKey);
+                ECPrivateKey priv = (ECPrivateKey) privateKey("EC", privateKey);
+                switch (bits) {
+                    case "256": return Algorithm.ECDSA256(pub, priv);
+                    case "384": return Algorithm.ECDSA384(pub, priv);
+                    case "512": return Algorithm.ECDSA512(pub, priv);
+                }
+                break;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported key algorithm " + alg);
+    }
+
+    private static PublicKey publicKey(String type, String encoded) throws GeneralSecurityException {
+        if (encoded == null) {
+            throw new IllegalArgumentException(type + " key without publicKey");
+        }
+        return KeyFactory.getInstance(type).generatePublic(new X509EncodedKeySpec(Base64.getMimeDecoder().decode(encoded)));
+    }
+
+    private static PrivateKey privateKey(String type, String encoded) throws GeneralSecurityException {
+        if (encoded == null) {
+            // verification only
+            return null;
+        }
+        return KeyFactory.getInstance(type).generatePrivate(new PKCS8EncodedKeySpec(Base64.getMimeDecoder().decode(encoded)));
+    }
+
+    /**
+     * The verifier of a key id, null for an unknown key; a null kid selects the
+     * legacy secret when it is accepted.
+     */
+    public JWTVerifier getVerifier(String kid) {
+        if (kid == null) {
+            return acceptLegacy ? legacyVerifier : null;
+        }
+        return keys.verifiers.get(kid);
+    }
+
+    /** Sign with the current signing key, with its kid in the header */
+    public String sign(JWTCreator.Builder builder) {
+        Keys current = this.keys;
+        if (current.signing == null) {
+            return builder.sign(legacy);
+        }
+        return builder.withKeyId(current.signingKid).sign(current.signing);
+    }
+
+    /** Called after the keys have been reloaded, e.g. to drop cached verifications */
+    public void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    public List<String> getKeyIds() {
+        return Lists.newArrayList(keys.verifiers.keySet());
+    }
+
+    public String getSigningKeyId() {
+        return keys.signingKid;
+    }
+
+    public void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+}
@@ -3,20 +3,21 @@ package com.sagas.security;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTCreator;
 import com.auth0.jwt.JWTVerifier;
-import com.auth0.jwt.algorithms.Algorithm;
-import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.sagas.actions.ActionRequest;
 import com.sagas.actions.ActionResponse;
 import com.sagas.actions.RemoteAction;
+import com.sagas.generic.EntityEventHub;
 import com.sagas.generic.ValueHelper;
 import com.sagas.meta.model.TaFieldValue;
 import com.sagas.meta.model.TaJson;
 import com.sagas.meta.model.TaStringEntries;
 import org.apache.ofbiz.base.conversion.ConversionException;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
@@ -26,48 +27,98 @@ import org.apache.ofbiz.service.LocalDispatcher;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.security.GeneralSecurityException;
+import java.util.Map;
 
 @Singleton
 public class SecurityManager {
     private static final String module = SecurityManager.class.getName();
-    final Algorithm algorithm = Algorithm.HMAC256("secret");
+    private static final String resource = "sagas";
     @Inject
     private LocalDispatcher dispatcher;
     @Inject
     private GenericDelegator delegator;
 
-    JWTVerifier verifier;
+    // signing key and the verifiers by kid
+    private KeyRegistry keys;
+    // verified tokens with their user login, so a token is verified and resolved once
+    private final TokenCache<GenericValue> tokens = new TokenCache<>(
+            UtilProperties.getPropertyAsLong(resource, "security.tokenCache.maxSize", 10000),
+            UtilProperties.getPropertyAsLong(resource, "security.tokenCache.ttlSeconds", 300),
+            UtilProperties.getPropertyAsLong(resource, "security.tokenCache.negativeTtlSeconds", 30));
+
     SecurityManager(){
-        this.verifier = JWT.require(algorithm)
-                .withIssuer("sagas")
-                // .withIssuer("auth")
-                .build(); //Reusable verifier instance
+    }
+
+    /** Tokens verified with a key that has been rotated out must be verified again */
+    @Inject
+    void watchKeys(KeyRegistry keys) {
+        this.keys = keys;
+        keys.addReloadListener(tokens::invalidateAll);
+    }
+
+    /**
+     * A cached user login is dropped as soon as the UserLogin row changes,
+     * e.g. when the login is disabled or the password changed, and again once
+     * the change is committed, so a token verified in between isn't cached
+     * with the old row.
+     */
+    @Inject
+    void listenUserLogins(EntityEventHub eventHub) {
+        eventHub.addChangeListener("UserLogin", value -> tokens.invalidate(value.getString("userLoginId")));
     }
 
     /// default userLoginId is 'system'
     public String createToken(String userLoginId){
-        String token = JWT.create()
+        JWTCreator.Builder builder = JWT.create()
                 .withClaim("name", "general")
                 .withClaim("user", userLoginId)
-                .withIssuer("sagas")
-                .withArrayClaim("array", new Integer[]{1, 2, 3})
-                .sign(algorithm);
-        return token;
+                .withIssuer(KeyRegistry.ISSUER)
+                .withArrayClaim("array", new Integer[]{1, 2, 3});
+        return keys.sign(builder);
     }
 
     public GenericValue verifyUser(String token) throws GeneralSecurityException {
+        TokenCache.Entry<GenericValue> cached = tokens.get(token);
+        if (cached != null) {
+            if (!cached.isValid()) {
+                throw new GeneralSecurityException(cached.getError());
+            }
+            return cached.getValue();
+        }
+
         String userLoginId=null;
         try {
-            DecodedJWT jwt = verifier.verify(token);
+            DecodedJWT jwt = JWT.decode(token);
+            JWTVerifier verifier = keys.getVerifier(jwt.getKeyId());
+            if (verifier == null) {
+                throw new JWTVerificationException("Unknown key " + jwt.getKeyId());
+            }
+            jwt = verifier.verify(jwt);
             userLoginId=jwt.getClaim("user").asString();
-            return getUserLogin(userLoginId);
-        }catch(JWTDecodeException exception){
+            GenericValue userLogin = getUserLogin(userLoginId);
+            if (userLoginId != null) {
+                long expiresAt = jwt.getExpiresAt() != null ? jwt.getExpiresAt().getTime() : Long.MAX_VALUE;
+                tokens.putValid(token, userLoginId, userLogin, expiresAt);
+            }
+            return userLogin;
+        }catch(JWTVerificationException exception){
+            // also a bad signature or an expired token, rejected again without verifying
+            tokens.putInvalid(token, "Invalid token");
             throw new GeneralSecurityException("Invalid token");
         } catch (GenericEntityException e) {
             throw new GeneralSecurityException("Invalid user login id "+userLoginId);
         }
     }
 
+    /** Hits, misses and size of the verified token cache */
+    public Map<String, Long> getTokenCacheStats() {
+        return tokens.getStats();
+    }
+
+    public void clearTokenCache() {
+        tokens.invalidateAll();
+    }
+
     public GenericValue getUserLogin(String userLoginId) throws GenericEntityException {
         GenericValue userLogin = EntityQuery.use(delegator).from("UserLogin")
                 .where("userLoginId", userLoginId).cache().queryOne();
@@ -77,9 +128,9 @@ public class SecurityManager {
     @RemoteAction
     public ActionResponse createToken(ActionRequest request) throws InvalidProtocolBufferException {
         TaStringEntries entries=TaStringEntries.parseFrom(request.getPayload());
-        JWTCreator.Builder jc=JWT.create().withIssuer("sagas");
+        JWTCreator.Builder jc=JWT.create().withIssuer(KeyRegistry.ISSUER);
         entries.getValuesMap().forEach(jc::withClaim);
-        String token=jc.sign(algorithm);
+        String token=keys.sign(jc);
         Debug.logImportant("create a token "+token, module);
         ByteString payload= TaFieldValue.newBuilder().setStringVal(token).build().toByteString();
         return new ActionResponse(0, payload);
@@ -0,0 +1,150 @@
+package com.sagas.security;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verified tokens with the user they resolved to, and rejected tokens with the
+ * reason, so a token is only verified once until it expires or its user changes.
+ * Reads don't lock, the entries are bounded by size and by ttl; a valid entry
+ * also expires with the token itself. The valid tokens are indexed by subject, so
+ * invalidating a user only touches the tokens of that user.
+ */
+public class TokenCache<V> {
+    private final Cache<String, Entry<V>> valid;
+    private final Cache<String, Entry<V>> invalid;
+    private final Map<String, Set<String>> tokensBySubject = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public static class Entry<V> {
+        private final String subject;
+        private final V value;
+        private final String error;
+        private final long expiresAt;
+
+        Entry(String subject, V value, String error, long expiresAt) {
+            this.subject = subject;
+            this.value = value;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /** The rejection reason, null for a valid token */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isValid() {
+            return error == null;
+        }
+    }
+
+    public TokenCache(long maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        this.valid = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener(this::unindex).build();
+        this.invalid = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS).build();
+    }
+
+    /** The cached outcome of the token, or null when it has to be verified */
+    public Entry<V> get(String token) {
+        Entry<V> entry = valid.getIfPresent(token);
+        if (entry != null) {
+            if (entry.expiresAt > System.currentTimeMillis()) {
+                hits.increment();
+                return entry;
+            }
+            valid.asMap().remove(token, entry);
+        }
+        entry = invalid.getIfPresent(token);
+        if (entry != null) {
+            negativeHits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Cache a verified token, the subject is the key used by invalidate and
+     * expiresAt the expiry of the token, Long.MAX_VALUE when it has none.
+     */
+    public void putValid(String token, String subject, V value, long expiresAt) {
+        valid.put(token, new Entry<>(subject, value, null, expiresAt));
+        tokensBySubject.computeIfAbsent(subject, k -> ConcurrentHashMap.newKeySet()).add(token);
+    }
+
+    /** Evicted, expired or replaced tokens leave the index */
+    private void unindex(RemovalNotification<String, Entry<V>> removal) {
+        String token = removal.getKey();
+        String subject = removal.getValue().subject;
+        Entry<V> current = valid.asMap().get(token);
+        if (current != null && subject.equals(current.subject)) {
+            // replaced by a token of the same subject
+            return;
+        }
+        tokensBySubject.computeIfPresent(subject, (k, tokens) -> {
+            tokens.remove(token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+
+    public void putInvalid(String token, String error) {
+        invalid.put(token, new Entry<>(null, null, error, Long.MAX_VALUE));
+    }
+
+    /** Drop the tokens of a subject, e.g. after its user login has been changed */
+    public void invalidate(String subject) {
+        Set<String> tokens = tokensBySubject.remove(subject);
+        if (tokens == null) {
+            return;
+        }
+        boolean removed = false;
+        for (String token : tokens) {
+            Entry<V> entry = valid.getIfPresent(token);
+            if (entry != null && subject.equals(entry.subject)) {
+                removed |= valid.asMap().remove(token, entry);
+            }
+        }
+        if (removed) {
+            invalidations.increment();
+        }
+    }
+
+    public void invalidateAll() {
+        valid.invalidateAll();
+        invalid.invalidateAll();
+        invalidations.increment();
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = Maps.newLinkedHashMap();
+        stats.put("hits", hits.sum());
+        stats.put("negativeHits", negativeHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("size", valid.size());
+        stats.put("negativeSize", invalid.size());
+        return stats;
+    }
+}
@@ -0,0 +1,103 @@
+package com.sagas.events;
+
+import com.google.common.collect.Maps;
+import com.sagas.generic.ValueHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one entity event fanned out to three sinks (measure kafka topic, measure
+ * rabbit topic and a queue subscriber), the way evalRules used to build the message
+ * for each sink against the shared EntityEvent envelope.
+ *
+ * Run the main method, the gc profiler reports the allocation per event
+ * (gc.alloc.rate.norm) next to the time per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityEventBenchmark {
+    private static final int SINKS = 3;
+
+    private Map<String, Object> product;
+
+    @Setup
+    public void setUp() {
+        product = Maps.newHashMap();
+        product.put("productId", "GZ-1000");
+        product.put("productTypeId", "FINISHED_GOOD");
+        product.put("productName", "Tiny Gizmo");
+        product.put("internalName", "Tiny Gizmo");
+        product.put("description", "A small gizmo for the benchmark");
+        product.put("isVirtual", "N");
+        product.put("isVariant", "N");
+        product.put("quantityIncluded", new BigDecimal("1.000"));
+        product.put("weight", new BigDecimal("7.500"));
+        product.put("introductionDate", Timestamp.valueOf("2014-10-22 10:20:30.123"));
+        product.put("lastUpdatedStamp", new Timestamp(System.currentTimeMillis()));
+        product.put("createdStamp", new Timestamp(System.currentTimeMillis()));
+    }
+
+    /** The former createMessage, called once per sink */
+    @Benchmark
+    public void perSinkMessages(Blackhole blackhole) throws Exception {
+        for (int i = 0; i < SINKS; i++) {
+            Map<String, Object> meta = Maps.newHashMap();
+            meta.put("_operation", "store");
+            meta.put("_event", "return");
+            meta.put("_entity", "Product");
+            meta.put("_timestamp", System.currentTimeMillis());
+            meta.put("_error", false);
+
+            Map<String, Object> map = Maps.newHashMap();
+            map.putAll(product);
+            map.putAll(meta);
+            blackhole.consume(ValueHelper.mapToJson(map));
+        }
+    }
+
+    @Benchmark
+    public void sharedEnvelopeJson(Blackhole blackhole) throws Exception {
+        EntityEvent event = new EntityEvent("Product", "Product|GZ-1000", "store", "return", false,
+                Maps.newHashMap(product));
+        for (int i = 0; i < SINKS; i++) {
+            blackhole.consume(event.toJson());
+        }
+    }
+
+    @Benchmark
+    public void sharedEnvelopeBinary(Blackhole blackhole) throws Exception {
+        EntityEvent event = new EntityEvent("Product", "Product|GZ-1000", "store", "return", false,
+                Maps.newHashMap(product));
+        for (int i = 0; i < SINKS; i++) {
+            blackhole.consume(event.toBinary());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(EntityEventBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,71 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventQueueTest {
+    @Test
+    public void testConsumersReadIndependently() {
+        EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.DROP_OLDEST);
+        queue.add("a");
+        queue.add("b");
+        assertEquals(Lists.newArrayList("a", "b"), queue.drain("first", 10, 0));
+        assertEquals("a", queue.poll());
+        assertEquals(Lists.newArrayList("a", "b"), queue.drain("second", 10, 0));
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testOverflow() {
+        EventQueue oldest = new EventQueue(2, EventQueue.OverflowPolicy.DROP_OLDEST);
+        oldest.add("a");
+        oldest.add("b");
+        oldest.add("c");
+        assertEquals(Lists.newArrayList("b", "c"), oldest.drain(EventQueue.DEFAULT_CONSUMER, 10, 0));
+        assertEquals(1, oldest.getDroppedCount());
+
+        EventQueue newest = new EventQueue(2, EventQueue.OverflowPolicy.DROP_NEWEST);
+        newest.add("a");
+        newest.add("b");
+        assertFalse(newest.add("c"));
+        assertEquals(Lists.newArrayList("a", "b"), newest.drain(EventQueue.DEFAULT_CONSUMER, 10, 0));
+    }
+
+    @Test
+    public void testNamedConsumersOnly() {
+        EventQueue queue = new EventQueue(2, EventQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.add("e" + i));
+            assertEquals(Lists.newArrayList("e" + i), queue.drain("worker", 10, 0));
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(1, queue.getConsumerCount());
+    }
+
+    @Test
+    public void testAbandonedConsumer() throws InterruptedException {
+        EventQueue removed = new EventQueue(2, EventQueue.OverflowPolicy.DROP_NEWEST);
+        removed.drain("gone", 10, 0);
+        removed.add("a");
+        removed.add("b");
+        assertFalse(removed.add("c"));
+        removed.removeConsumer("gone");
+        assertEquals(0, removed.getLag());
+
+        EventQueue idle = new EventQueue(2, EventQueue.OverflowPolicy.DROP_NEWEST, 1);
+        idle.drain("idle", 10, 0);
+        idle.add("a");
+        idle.add("b");
+        Thread.sleep(5);
+        idle.drain("active", 10, 0);
+        assertTrue(idle.add("c"));
+        assertEquals(1, idle.getConsumerCount());
+        assertEquals(Lists.newArrayList("c"), idle.drain("active", 10, 0));
+    }
+}
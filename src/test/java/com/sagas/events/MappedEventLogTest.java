@@ -0,0 +1,40 @@
+package com.sagas.events;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedEventLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResumeAfterLastRecord() throws Exception {
+        File file = new File(folder.getRoot(), "events.log");
+        MappedEventLog log = new MappedEventLog(file, 16);
+        log.append(new byte[]{1, 2, 3});
+        log.append(new byte[]{4, 5, 6, 7, 8, 9});
+        // the second record didn't fit in the first window
+        assertEquals(17, log.getPosition());
+        log.close();
+        assertEquals(17, file.length());
+
+        MappedEventLog reopened = new MappedEventLog(file, 16);
+        assertEquals(17, reopened.getPosition());
+        reopened.append(new byte[]{10});
+        assertEquals(22, reopened.getPosition());
+        reopened.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testAppendAfterClose() throws Exception {
+        MappedEventLog log = new MappedEventLog(new File(folder.getRoot(), "closed.log"), 16);
+        log.close();
+        log.append(new byte[]{1});
+    }
+}
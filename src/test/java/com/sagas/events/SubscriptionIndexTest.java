@@ -0,0 +1,29 @@
+package com.sagas.events;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SubscriptionIndexTest {
+    @Test
+    public void testLookup() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        EventSink sink = new MemoryEventSink();
+        assertEquals(0, index.lookup("Product", "store", "return").length);
+
+        Subscription exact = new Subscription("Product", "store", "return", sink, null);
+        Subscription pattern = new Subscription("Order*", "store", "*", sink, null);
+        index.add(exact);
+        index.add(pattern);
+
+        assertSame(exact, index.lookup("Product", "store", "return")[0]);
+        assertEquals(0, index.lookup("Product", "create", "return").length);
+        assertSame(pattern, index.lookup("OrderHeader", "store", "run")[0]);
+        assertSame(pattern, index.lookup("OrderItem", "store", "return")[0]);
+        assertEquals(0, index.lookup("ProductOrder", "store", "return").length);
+
+        index.remove(exact);
+        assertEquals(0, index.lookup("Product", "store", "return").length);
+    }
+}
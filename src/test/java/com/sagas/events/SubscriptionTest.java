@@ -0,0 +1,87 @@
+package com.sagas.events;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.model.ModelEntity;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionTest {
+    private static final List<String> FIELDS = Lists.newArrayList("productId", "productName", "statusId");
+
+    private static final ModelEntity MODEL = new ModelEntity() {
+        @Override
+        public boolean isField(String fieldName) {
+            return FIELDS.contains(fieldName);
+        }
+
+        @Override
+        public List<String> getAllFieldNames() {
+            return FIELDS;
+        }
+    };
+
+    /** Value read from the database, the delegator synchronizes it after the store */
+    private static class StoredValue extends GenericValue {
+        private final Map<String, Object> current = Maps.newHashMap();
+        private final Map<String, Object> original = Maps.newHashMap();
+
+        StoredValue(String productId, String productName, String statusId) {
+            current.put("productId", productId);
+            current.put("productName", productName);
+            current.put("statusId", statusId);
+            original.putAll(current);
+        }
+
+        @Override
+        public ModelEntity getModelEntity() {
+            return MODEL;
+        }
+
+        @Override
+        public Object get(String name) {
+            return current.get(name);
+        }
+
+        @Override
+        public Object getOriginalDbValue(String name) {
+            return original.get(name);
+        }
+
+        @Override
+        public void synchronizedWithDatasource() {
+            original.clear();
+            original.putAll(current);
+        }
+    }
+
+    @Test
+    public void testChangedFieldsAfterStore() {
+        EventSink sink = new MemoryEventSink();
+        Subscription subscription = new Subscription("Product", "store", "return", sink, null,
+                new SubscriptionOptions().setChangedFields("statusId"));
+
+        StoredValue renamed = new StoredValue("P1", "old", "ACTIVE");
+        Map<String, Object> before = EntityEvent.beforeImage(renamed);
+        renamed.current.put("productName", "new");
+        renamed.synchronizedWithDatasource();
+        assertFalse(subscription.accepts("store", renamed, before));
+
+        StoredValue retired = new StoredValue("P2", "name", "ACTIVE");
+        before = EntityEvent.beforeImage(retired);
+        retired.current.put("statusId", "RETIRED");
+        retired.synchronizedWithDatasource();
+        assertTrue(subscription.accepts("store", retired, before));
+
+        Map<String, Object> changes = EntityEvent.changes(before, retired, null);
+        assertEquals(1, changes.size());
+        assertEquals("ACTIVE", changes.get("statusId"));
+    }
+}
@@ -0,0 +1,29 @@
+package com.sagas.generic;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryValueCodecTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        Timestamp ts = Timestamp.valueOf("2014-10-22 10:20:30.123456789");
+        Map<String, Object> values = Maps.newHashMap();
+        values.put("productId", "GZ-1000");
+        values.put("quantity", 3L);
+        values.put("price", new BigDecimal("15.990"));
+        values.put("createdStamp", ts);
+        values.put("introductionDate", java.sql.Date.valueOf("2014-10-22"));
+        values.put("tags", Lists.newArrayList("a", 1, null));
+
+        Map<String, Object> decoded = BinaryValueCodec.decodeMap(BinaryValueCodec.encode(values));
+        assertEquals(values, decoded);
+        assertEquals(ts.getNanos(), ((Timestamp) decoded.get("createdStamp")).getNanos());
+    }
+}
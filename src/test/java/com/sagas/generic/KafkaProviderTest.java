@@ -0,0 +1,45 @@
+package com.sagas.generic;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KafkaProviderTest {
+    @Test
+    public void testKeyedRecordsAndCounters() {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(false,
+                new ByteArraySerializer(), new ByteArraySerializer());
+        KafkaProvider provider = new KafkaProvider(producer);
+
+        provider.post("event.Product", "Product|GZ-1000", "{\"productId\":\"GZ-1000\"}");
+        provider.post("event.Product", "{}");
+        producer.completeNext();
+        producer.errorNext(new RuntimeException("broker down"));
+
+        List<ProducerRecord<byte[], byte[]>> history = producer.history();
+        assertEquals(2, history.size());
+        assertEquals("Product|GZ-1000", new String(history.get(0).key(), StandardCharsets.UTF_8));
+        assertNull(history.get(1).key());
+        assertEquals(1, provider.getSentCount());
+        assertEquals(1, provider.getFailedCount());
+        assertEquals(2, provider.getLatency().getCount());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100_000);
+        }
+        histogram.record(50_000_000);
+        assertEquals(128, histogram.percentileMicros(0.5));
+        assertEquals(65536, histogram.percentileMicros(1.0));
+    }
+}
@@ -0,0 +1,24 @@
+package com.sagas.hybrid;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class AdmissionControllerTest {
+    @Test
+    public void testShedding() {
+        AdmissionController controller = new AdmissionController(4, 100);
+        assertNull(controller.tryAdmit(3));
+        assertNotNull(controller.tryAdmit(4));
+
+        controller.completed(TimeUnit.MILLISECONDS.toNanos(500));
+        assertNotNull(controller.tryAdmit(0));
+
+        AdmissionController unlimited = new AdmissionController(0, 0);
+        unlimited.completed(TimeUnit.SECONDS.toNanos(10));
+        assertNull(unlimited.tryAdmit(1000));
+    }
+}
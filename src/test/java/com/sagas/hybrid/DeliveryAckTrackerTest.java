@@ -0,0 +1,48 @@
+package com.sagas.hybrid;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeliveryAckTrackerTest {
+    @Test
+    public void testAcksInDeliveryOrder() {
+        List<Long> acked = Lists.newArrayList();
+        DeliveryAckTracker tracker = new DeliveryAckTracker(acked::add);
+        for (long tag = 1; tag <= 4; tag++) {
+            tracker.received(tag);
+        }
+
+        tracker.completed(3);
+        tracker.completed(2);
+        assertEquals(0, acked.size());
+
+        tracker.completed(1);
+        assertEquals(Lists.newArrayList(3L), acked);
+
+        tracker.completed(4);
+        assertEquals(Lists.newArrayList(3L, 4L), acked);
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void testDiscardReleasesLaterDeliveries() {
+        List<Long> acked = Lists.newArrayList();
+        DeliveryAckTracker tracker = new DeliveryAckTracker(acked::add);
+        for (long tag = 1; tag <= 3; tag++) {
+            tracker.received(tag);
+        }
+
+        tracker.completed(2);
+        tracker.completed(3);
+        assertEquals(0, acked.size());
+
+        // delivery 1 was nacked
+        tracker.discard(1);
+        assertEquals(Lists.newArrayList(3L), acked);
+        assertEquals(0, tracker.getPendingCount());
+    }
+}
@@ -0,0 +1,57 @@
+package com.sagas.security;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeyRegistryTest {
+    @Test
+    public void testLoadKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair pair = generator.generateKeyPair();
+
+        Properties properties = new Properties();
+        properties.setProperty("signing", "ec1");
+        properties.setProperty("ec1.alg", "ES256");
+        properties.setProperty("ec1.publicKey", Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()));
+        properties.setProperty("ec1.privateKey", Base64.getEncoder().encodeToString(pair.getPrivate().getEncoded()));
+        properties.setProperty("old.alg", "HS256");
+        properties.setProperty("old.secret", "old-secret");
+
+        KeyRegistry.Keys keys = KeyRegistry.load(properties);
+        assertEquals("ec1", keys.signingKid);
+        assertEquals(2, keys.verifiers.size());
+
+        String token = JWT.create().withIssuer(KeyRegistry.ISSUER).withKeyId("ec1")
+                .withClaim("user", "admin").sign(keys.signing);
+        DecodedJWT jwt = keys.verifiers.get("ec1").verify(JWT.decode(token));
+        assertEquals("admin", jwt.getClaim("user").asString());
+        assertNull(keys.verifiers.get("missing"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSigningKey() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("signing", "missing");
+        properties.setProperty("old.alg", "HS256");
+        properties.setProperty("old.secret", "old-secret");
+        KeyRegistry.load(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortAlgorithm() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("old.alg", "H");
+        properties.setProperty("old.secret", "old-secret");
+        KeyRegistry.load(properties);
+    }
+}
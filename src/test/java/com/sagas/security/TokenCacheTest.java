@@ -0,0 +1,51 @@
+package com.sagas.security;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TokenCacheTest {
+    @Test
+    public void testValidAndInvalid() {
+        TokenCache<String> cache = new TokenCache<>(100, 60, 60);
+        assertNull(cache.get("t1"));
+
+        cache.putValid("t1", "admin", "admin-login", Long.MAX_VALUE);
+        assertEquals("admin-login", cache.get("t1").getValue());
+
+        cache.putInvalid("t2", "Invalid token");
+        assertFalse(cache.get("t2").isValid());
+        assertEquals("Invalid token", cache.get("t2").getError());
+
+        assertEquals(1L, (long) cache.getStats().get("hits"));
+        assertEquals(2L, (long) cache.getStats().get("negativeHits"));
+        assertEquals(1L, (long) cache.getStats().get("misses"));
+    }
+
+    @Test
+    public void testExpiryAndInvalidation() {
+        TokenCache<String> cache = new TokenCache<>(100, 60, 60);
+        cache.putValid("expired", "admin", "admin-login", System.currentTimeMillis() - 1);
+        assertNull(cache.get("expired"));
+
+        cache.putValid("t1", "admin", "admin-login", Long.MAX_VALUE);
+        cache.putValid("t2", "system", "system-login", Long.MAX_VALUE);
+        cache.invalidate("admin");
+        assertNull(cache.get("t1"));
+        assertEquals("system-login", cache.get("t2").getValue());
+    }
+
+    @Test
+    public void testInvalidationFollowsReplacedTokens() {
+        TokenCache<String> cache = new TokenCache<>(100, 60, 60);
+        cache.putValid("t1", "admin", "admin-login", Long.MAX_VALUE);
+        cache.putValid("t1", "system", "system-login", Long.MAX_VALUE);
+        cache.invalidate("admin");
+        assertEquals("system-login", cache.get("t1").getValue());
+
+        cache.invalidate("system");
+        assertNull(cache.get("t1"));
+    }
+}